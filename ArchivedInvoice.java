@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An ArchivedInvoice reads one invoice record in place from an InvoiceArchive
+ * segment.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Reading the invoice through the InvoiceRecord accessors.
+ * 
+ * Nothing is decoded until it is asked for, so scanning an archive for the
+ * totals or ID's never builds a String. A scan moves one ArchivedInvoice from
+ * record to record rather than creating one per record, so an ArchivedInvoice
+ * handed to a scan's visitor is only valid until the visitor returns. Copy out
+ * anything needed later.
+ */
+
+public class ArchivedInvoice implements InvoiceRecord {
+
+	// Layout of a record body, after the length and checksum: five longs, six
+	// strings, a purchase count, then per purchase two strings, a long and an
+	// int. Each string is a two byte length followed by UTF-8, with
+	// NULL_STRING as the length of a null string.
+	static final int INVOICE_ID = 0;
+	static final int CREATED_MILLIS = 8;
+	static final int ITEM_TOTAL = 16;
+	static final int DELIVERY = 24;
+	static final int INSURANCE = 32;
+	static final int STRINGS = 40;
+	static final int NULL_STRING = 0xFFFF;
+
+	// Order of the six invoice strings.
+	private static final int DATE_TIME = 0, NAME = 1, ADDRESS = 2, COUNTRY = 3,
+			PHONE_NUMBER = 4, DELIVERY_INFORMATION = 5;
+
+	private ByteBuffer buffer;
+	private int start;
+
+	// Offset of each purchase, found the first time a purchase is read.
+	private int[] purchaseOffsets = new int[8];
+	private int purchaseCount = -1;
+
+	private byte[] text = new byte[256];
+
+	// Constructor of ArchivedInvoice. Only InvoiceArchive reads records.
+	ArchivedInvoice() {
+	}
+
+	// Moves to the record body starting at the given offset.
+	void moveTo(ByteBuffer buffer, int start) {
+		this.buffer = buffer;
+		this.start = start;
+		this.purchaseCount = -1;
+	}
+
+	public long getInvoiceID() {
+		return this.buffer.getLong(this.start + INVOICE_ID);
+	}
+
+	public long getCreatedMillis() {
+		return this.buffer.getLong(this.start + CREATED_MILLIS);
+	}
+
+	public String getDateTime() {
+		return string(DATE_TIME);
+	}
+
+	public String getName() {
+		return string(NAME);
+	}
+
+	public String getAddress() {
+		return string(ADDRESS);
+	}
+
+	public String getCountry() {
+		return string(COUNTRY);
+	}
+
+	public String getPhoneNumber() {
+		return string(PHONE_NUMBER);
+	}
+
+	public String getDeliveryInformation() {
+		return string(DELIVERY_INFORMATION);
+	}
+
+	public int getPurchaseCount() {
+		findPurchases();
+		return this.purchaseCount;
+	}
+
+	public String getPurchaseID(int purchase) {
+		return decode(purchaseOffset(purchase));
+	}
+
+	public String getPurchaseDescription(int purchase) {
+		return decode(skip(purchaseOffset(purchase)));
+	}
+
+	public long getPurchasePriceCents(int purchase) {
+		return this.buffer.getLong(skip(skip(purchaseOffset(purchase))));
+	}
+
+	public int getPurchaseQuantity(int purchase) {
+		return this.buffer.getInt(skip(skip(purchaseOffset(purchase))) + Long.BYTES);
+	}
+
+	public long getItemTotalCents() {
+		return this.buffer.getLong(this.start + ITEM_TOTAL);
+	}
+
+	public long getDeliveryCents() {
+		return this.buffer.getLong(this.start + DELIVERY);
+	}
+
+	public long getInsuranceCents() {
+		return this.buffer.getLong(this.start + INSURANCE);
+	}
+
+	public long getGrandTotalCents() {
+		return Money.add(Money.add(getItemTotalCents(), getDeliveryCents()),
+				getInsuranceCents());
+	}
+
+	// Decodes the given invoice string.
+	private String string(int field) {
+		int offset = this.start + STRINGS;
+
+		for (int i = 0; i < field; i++)
+			offset = skip(offset);
+
+		return decode(offset);
+	}
+
+	private int purchaseOffset(int purchase) {
+		findPurchases();
+
+		if (purchase < 0 || purchase >= this.purchaseCount)
+			throw new IndexOutOfBoundsException("No purchase " + purchase);
+
+		return this.purchaseOffsets[purchase];
+	}
+
+	// Walks the purchases once, noting where each starts.
+	private void findPurchases() {
+		if (this.purchaseCount >= 0)
+			return;
+
+		int offset = this.start + STRINGS;
+		for (int i = 0; i <= DELIVERY_INFORMATION; i++)
+			offset = skip(offset);
+
+		int count = this.buffer.getInt(offset);
+		offset += Integer.BYTES;
+
+		if (this.purchaseOffsets.length < count)
+			this.purchaseOffsets = Arrays.copyOf(this.purchaseOffsets, count);
+
+		for (int purchase = 0; purchase < count; purchase++) {
+			this.purchaseOffsets[purchase] = offset;
+			offset = skip(skip(offset)) + Long.BYTES + Integer.BYTES;
+		}
+		this.purchaseCount = count;
+	}
+
+	// Offset just past the string at the given offset.
+	private int skip(int offset) {
+		int length = Short.toUnsignedInt(this.buffer.getShort(offset));
+		return offset + Short.BYTES + (length == NULL_STRING ? 0 : length);
+	}
+
+	private String decode(int offset) {
+		int length = Short.toUnsignedInt(this.buffer.getShort(offset));
+
+		if (length == NULL_STRING)
+			return null;
+
+		if (this.text.length < length)
+			this.text = new byte[Math.max(length, this.text.length * 2)];
+
+		this.buffer.get(offset + Short.BYTES, this.text, 0, length);
+		return new String(this.text, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,1080 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Benchmarks measures the throughput of the Sales System's hot paths.
+ * 
+ * Each benchmark is named on the command line, for example
+ * "java Benchmarks lookup contention". Every measurement warms up first, then
+ * reports operations per second for each catalog size and thread count it is
+ * run with.
+ * 
+ * lookup - getPrice, getStockLevel and getProduct over catalogs of 6, 10,000
+ * and 1,000,000 products.
+ * 
+ * contention - removeStock/orderStock pairs, all on one product and spread
+ * over the catalog.
+ * 
+ * stress - removeStock and orderStock on four products from every thread, with
+ * little stock, checking that stock is conserved and never goes negative, then
+ * that every update is refused once the stock journal cannot be flushed. Fails
+ * with an IllegalStateException if any check does not hold.
+ * 
+ * journal - stock mutations per second with and without a StockJournal.
+ * 
+ * catalog - time to load a million-product catalog file with CatalogLoader.
+ * 
+ * invoice - creating an Invoice2 on each thread count, then
+ * Invoice2.formatItemStrings, InvoiceRenderer.render, a rendered invoice
+ * printed straight to System.out, and displayInvoice through a
+ * BufferedOutputSink for invoices of 6, 100 and 10,000 lines.
+ * 
+ * orders - whole three line orders through an OrderEngine on each thread count,
+ * without an archive and with every order archived and synced.
+ * 
+ * sessions - 10,000 clerk sessions placing orders at once through a
+ * SessionManager, and the heap each open session costs.
+ * 
+ * http - a loopback load test of SalesHttpServer: each thread places orders of
+ * three requests over kept-alive connections, reporting requests per second
+ * and p99 latency, then a 1,000,000 product inventory listing.
+ * 
+ * metrics - getStockLevel, whole orders and rendering a 100 line invoice with
+ * SalesMetrics disabled and enabled, then what the MXBeans report, read back
+ * through JMX.
+ * 
+ * archive - appending a million invoices to an InvoiceArchive, then scanning
+ * them back.
+ * 
+ * export - exporting a million archived invoices as CSV and as JSON lines,
+ * with the heap in use before and after.
+ * 
+ * index - archiving a year of invoices, a million in all, with an InvoiceIndex,
+ * then finding them by customer name, phone number, product and day.
+ * 
+ * invoiceid - InvoiceIdGenerator.nextId with its state file on disk.
+ * 
+ * money - totalling baskets of 100, 10,000 and 1,000,000 lines in double
+ * arithmetic and in cents with Money.total.
+ * 
+ * inventory - one page of the inventory table, as shown by
+ * SalesSystem2.retrieveInventory, over each catalog size.
+ * 
+ * "--record file" saves every result so a later run can be compared with it
+ * using "--baseline file", which adds the change against each saved result.
+ * 
+ * The Sales System is built with javac alone, with no build file to fetch JMH
+ * with, so these benchmarks do by hand what JMH would: each thread keeps what
+ * its operations return and publishes it once when it finishes, and reads the
+ * clock once a batch of operations rather than after every one.
+ */
+
+public class Benchmarks {
+
+	// How long each measurement warms up for, then runs for.
+	private static final long WARM_UP_MILLIS = 500;
+	private static final long MEASURE_MILLIS = 2000;
+
+	// Catalog sizes and thread counts the benchmarks are run with.
+	private static final int[] CATALOG_SIZES = { 6, 10_000, 1_000_000 };
+	private static final int[] THREAD_COUNTS = { 1, 4, 16 };
+
+	// Results of this run, and of the run being compared against, keyed by name.
+	private static final List<String> results = new ArrayList<>();
+	private static final Map<String, Double> baseline = new HashMap<>();
+
+	// Keeps results from being optimised away. Each thread adds up what its
+	// operations return and adds that here once, when it finishes, so threads do
+	// not contend on it while they are being measured.
+	private static final LongAdder sink = new LongAdder();
+
+	// How long a batch of operations must take before run stops doubling it.
+	private static final long BATCH_NANOS = 50_000;
+
+	// A single benchmarked operation. Iterations count up from 0 per thread. What
+	// it returns should depend on the work it did, so the work cannot be
+	// optimised away.
+	private interface Operation {
+		long run(int thread, long iteration) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Path recordFile = null;
+		List<String> benchmarks = new ArrayList<>();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--record") && i + 1 < args.length)
+				recordFile = Paths.get(args[++i]);
+			else if (args[i].equals("--baseline") && i + 1 < args.length)
+				readBaseline(Paths.get(args[++i]));
+			else
+				benchmarks.add(args[i]);
+		}
+
+		if (benchmarks.isEmpty()) {
+			System.out.println(
+					"Usage: java Benchmarks [--record file] [--baseline file] <benchmark>...");
+			System.out.println(
+					"Benchmarks: lookup contention stress journal catalog invoice orders sessions http metrics archive export index invoiceid money inventory");
+			return;
+		}
+
+		for (String benchmark : benchmarks) {
+			if (benchmark.equalsIgnoreCase("lookup"))
+				lookup();
+			else if (benchmark.equalsIgnoreCase("contention"))
+				contention();
+			else if (benchmark.equalsIgnoreCase("stress"))
+				stress();
+			else if (benchmark.equalsIgnoreCase("journal"))
+				journal();
+			else if (benchmark.equalsIgnoreCase("catalog"))
+				catalog();
+			else if (benchmark.equalsIgnoreCase("invoice"))
+				invoice();
+			else if (benchmark.equalsIgnoreCase("orders"))
+				orders();
+			else if (benchmark.equalsIgnoreCase("sessions"))
+				sessions();
+			else if (benchmark.equalsIgnoreCase("http"))
+				http();
+			else if (benchmark.equalsIgnoreCase("metrics"))
+				metrics();
+			else if (benchmark.equalsIgnoreCase("archive"))
+				archive();
+			else if (benchmark.equalsIgnoreCase("export"))
+				export();
+			else if (benchmark.equalsIgnoreCase("index"))
+				index();
+			else if (benchmark.equalsIgnoreCase("invoiceid"))
+				invoiceId();
+			else if (benchmark.equalsIgnoreCase("money"))
+				money();
+			else if (benchmark.equalsIgnoreCase("inventory"))
+				inventory();
+			else
+				System.out.println("Unknown benchmark: " + benchmark);
+		}
+
+		if (recordFile != null)
+			Files.write(recordFile, results);
+	}
+
+	// Index lookups through each getter, over every catalog size.
+	private static void lookup() throws Exception {
+		for (int size : CATALOG_SIZES) {
+			String[] productIDs = productIDs(size);
+			Inventory inventory = catalog(productIDs);
+
+			for (int threads : THREAD_COUNTS) {
+				report("lookup getPrice", size, threads, measure(threads,
+						(thread, i) -> (long) inventory.getPrice(pick(productIDs, thread, i))));
+				report("lookup getStockLevel", size, threads, measure(threads,
+						(thread, i) -> inventory.getStockLevel(pick(productIDs, thread, i))));
+				report("lookup getProduct", size, threads, measure(threads,
+						(thread, i) -> inventory.getProduct(pick(productIDs, thread, i))
+								.getStockLevel()));
+			}
+		}
+	}
+
+	// Stock updates all on one product, then spread over a 10,000 product catalog.
+	private static void contention() throws Exception {
+		String[] productIDs = productIDs(10_000);
+		String[] hotProduct = { productIDs[0] };
+
+		for (int threads : THREAD_COUNTS) {
+			Inventory inventory = catalog(productIDs);
+			report("contention one product", productIDs.length, threads, measure(threads,
+					(thread, i) -> mutate(inventory, hotProduct, thread, i)));
+			report("contention spread", productIDs.length, threads, measure(threads,
+					(thread, i) -> mutate(inventory, productIDs, thread, i)));
+		}
+	}
+
+	// Two removals to every order on four products, so stock hovers around zero
+	// and tills keep racing to take the last of it. Every thread tallies the
+	// stock it took and put back, and once all have finished each product must
+	// hold exactly its starting stock less what was taken. No update may report,
+	// and no reader may see, a negative stock level.
+	private static void stress() throws Exception {
+		String[] productIDs = productIDs(4);
+		int startingStock = 100;
+
+		for (int threads : THREAD_COUNTS) {
+			Inventory inventory = catalog(productIDs, startingStock);
+			long[][] taken = new long[threads][productIDs.length];
+			long[] rejected = new long[threads];
+			long[] updated = new long[threads];
+
+			run(threads, MEASURE_MILLIS, (thread, i) -> {
+				int product = (int) ((i * 31 + thread * 7919L) % productIDs.length);
+				int quantity = 1 + (int) (i % 3);
+
+				if (i % 3 != 0) {
+					int result = inventory.removeStock(productIDs[product], quantity);
+					if (result >= 0)
+						taken[thread][product] += quantity;
+					else if (result == -3)
+						rejected[thread]++;
+					else
+						throw new IllegalStateException("removeStock returned " + result);
+				} else {
+					int result = inventory.orderStock(productIDs[product], quantity);
+					if (result < 0)
+						throw new IllegalStateException("orderStock returned " + result);
+					taken[thread][product] -= quantity;
+				}
+
+				int stockLevel = inventory.getStockLevel(productIDs[product]);
+				if (stockLevel < 0)
+					throw new IllegalStateException(productIDs[product] + " went negative");
+				updated[thread]++;
+				return stockLevel;
+			});
+
+			for (int product = 0; product < productIDs.length; product++) {
+				long expected = startingStock;
+				for (int thread = 0; thread < threads; thread++)
+					expected -= taken[thread][product];
+
+				int stockLevel = inventory.getStockLevel(productIDs[product]);
+				if (stockLevel != expected)
+					throw new IllegalStateException(productIDs[product] + " holds " + stockLevel
+							+ " but should hold " + expected);
+			}
+
+			long updates = 0, rejects = 0;
+			for (int thread = 0; thread < threads; thread++) {
+				updates += updated[thread];
+				rejects += rejected[thread];
+			}
+			System.out.printf("stress %d threads: %,d updates, %,d rejected with -3, "
+					+ "stock conserved%n", threads, updates, rejects);
+		}
+
+		// Once the journal cannot be flushed, the update waiting on it fails but
+		// stays applied, as it may be on disk. Every later update must be refused
+		// and leave stock as it was, and replaying the journal into a new
+		// Inventory must give back only what reached disk.
+		Path journalFile = Files.createTempFile("stock", ".journal");
+		try {
+			Inventory inventory = catalog(productIDs, startingStock);
+			StockJournal journal = new StockJournal(journalFile);
+			inventory.attachJournal(journal);
+			journal.close();
+
+			int updates = 300, refused = 0;
+			int[] afterFailure = null;
+			for (int i = 0; i < updates; i++) {
+				try {
+					if (i % 3 == 0)
+						inventory.removeStock(productIDs[0], 1);
+					else if (i % 3 == 1)
+						inventory.orderStock(productIDs[1], 1);
+					else
+						inventory.reserveStock(productIDs, new int[] { 1, 1, 1, 1 });
+				} catch (UncheckedIOException e) {
+					refused++;
+				}
+
+				if (afterFailure == null) {
+					afterFailure = new int[productIDs.length];
+					for (int product = 0; product < productIDs.length; product++)
+						afterFailure[product] = inventory.getStockLevel(productIDs[product]);
+				}
+			}
+
+			for (int product = 0; product < productIDs.length; product++)
+				if (inventory.getStockLevel(productIDs[product]) != afterFailure[product])
+					throw new IllegalStateException(productIDs[product] + " holds "
+							+ inventory.getStockLevel(productIDs[product]) + " after "
+							+ refused + " refused updates, but should hold "
+							+ afterFailure[product]);
+			if (refused != updates)
+				throw new IllegalStateException("Only " + refused + " of " + updates
+						+ " updates were refused");
+
+			Inventory replayed = catalog(productIDs, startingStock);
+			try (StockJournal reopened = new StockJournal(journalFile)) {
+				replayed.attachJournal(reopened);
+			}
+			for (String productID : productIDs)
+				if (replayed.getStockLevel(productID) != startingStock)
+					throw new IllegalStateException(productID + " replays as "
+							+ replayed.getStockLevel(productID) + " but nothing reached disk");
+			System.out.printf("stress journal failed: %,d updates refused, later ones "
+					+ "left stock unchanged, replay matches disk%n", refused);
+		} finally {
+			Files.deleteIfExists(journalFile);
+		}
+	}
+
+	// Sustained removeStock/orderStock pairs with durability off and on.
+	private static void journal() throws Exception {
+		String[] productIDs = productIDs(10_000);
+
+		for (int threads : THREAD_COUNTS) {
+			Inventory inventory = catalog(productIDs);
+			report("journal off", productIDs.length, threads,
+					measure(threads, (thread, i) -> mutate(inventory, productIDs, thread, i)));
+
+			Path journalFile = Files.createTempFile("stock", ".journal");
+			try (StockJournal journal = new StockJournal(journalFile)) {
+				Inventory journaled = catalog(productIDs);
+				journaled.attachJournal(journal);
+				report("journal on", productIDs.length, threads,
+						measure(threads, (thread, i) -> mutate(journaled, productIDs, thread, i)));
+			} finally {
+				Files.deleteIfExists(journalFile);
+			}
+		}
+	}
+
+	// Loads a generated million-product catalog a few times, reporting each load.
+	private static void catalog() throws Exception {
+		Path catalogFile = Files.createTempFile("catalog", ".csv");
+
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(catalogFile)) {
+				writer.write("productID,description,price,stockLevel\n");
+				for (int i = 0; i < 1_000_000; i++)
+					writer.write("SKU" + i + ",Toy number " + i + "," + (i % 500) + "."
+							+ (10 + i % 90) + "," + (i % 40) + "\n");
+			}
+
+			CatalogLoader loader = new CatalogLoader();
+			for (int run = 1; run <= 5; run++) {
+				Inventory inventory = loader.load("Toy Universe", catalogFile);
+				System.out.printf("catalog load %d: %,d products in %,d ms%n", run,
+						inventory.getAllProductIDs().length, loader.getLoadMillis());
+			}
+		} finally {
+			Files.deleteIfExists(catalogFile);
+		}
+	}
+
+	// Formats, renders and displays invoices of a few sizes, with output thrown
+	// away.
+	private static void invoice() throws Exception {
+		PrintStream console = System.out;
+		InvoiceRenderer renderer = new InvoiceRenderer();
+
+		for (int threads : THREAD_COUNTS)
+			report("invoice create", 0, threads, measure(threads,
+					(thread, i) -> new Invoice2("Joe Citizen", "12 Joe Road",
+							"Australia", "1300 563 563").getInvoiceID()));
+
+		for (int lines : new int[] { 6, 100, 10_000 }) {
+			Invoice2 invoice = invoice(lines);
+
+			report("invoice formatItemStrings", lines, 1,
+					measure(1, (thread, i) -> invoice.formatItemStrings().length));
+			report("invoice render", lines, 1,
+					measure(1, (thread, i) -> renderer.render(invoice).length()));
+
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+			double displayRate;
+			try {
+				displayRate = measure(1, (thread, i) -> {
+					System.out.print(renderer.render(invoice));
+					return 0;
+				});
+			} finally {
+				System.setOut(console);
+			}
+			report("invoice System.out", lines, 1, displayRate);
+
+			BufferedOutputSink sink = new BufferedOutputSink(OutputStream.nullOutputStream(),
+					StandardCharsets.UTF_8);
+			report("invoice OutputSink", lines, 1, measure(1, (thread, i) -> {
+				invoice.displayInvoice(sink);
+				sink.flush();
+				return 0;
+			}));
+		}
+	}
+
+	// Places whole orders through an OrderEngine over a 10,000 product catalog,
+	// first kept in memory only, then archived.
+	private static void orders() throws Exception {
+		String[] productIDs = productIDs(10_000);
+
+		try (OrderEngine engine = new OrderEngine(catalog(productIDs))) {
+			for (int threads : THREAD_COUNTS)
+				report("orders in memory", productIDs.length, threads,
+						measure(threads, (thread, i) -> order(engine, productIDs, thread, i)));
+		}
+
+		Path directory = Files.createTempDirectory("invoices");
+		try (InvoiceArchive archive = new InvoiceArchive(directory);
+				OrderEngine engine = new OrderEngine(catalog(productIDs), archive, null)) {
+			for (int threads : THREAD_COUNTS)
+				report("orders archived", productIDs.length, threads,
+						measure(threads, (thread, i) -> order(engine, productIDs, thread, i)));
+		} finally {
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+				for (Path segment : segments)
+					Files.delete(segment);
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// Measures what recording metrics costs the hot paths, then reads a few of
+	// the MXBeans back the way a JMX client would.
+	private static void metrics() throws Exception {
+		String[] productIDs = productIDs(10_000);
+		Inventory inventory = catalog(productIDs);
+		InvoiceRenderer renderer = new InvoiceRenderer();
+		Invoice2 invoice = invoice(100);
+
+		try (OrderEngine engine = new OrderEngine(inventory)) {
+			for (boolean enabled : new boolean[] { false, true }) {
+				if (enabled)
+					SalesMetrics.enable();
+				String state = enabled ? " (metrics)" : "";
+
+				for (int threads : THREAD_COUNTS) {
+					report("metrics getStockLevel" + state, productIDs.length, threads,
+							measure(threads, (thread, i) -> inventory
+									.getStockLevel(pick(productIDs, thread, i))));
+					report("metrics orders" + state, productIDs.length, threads,
+							measure(threads, (thread, i) -> order(engine, productIDs, thread, i)));
+				}
+				report("metrics render" + state, 100, 1,
+						measure(1, (thread, i) -> renderer.render(invoice).length()));
+			}
+		}
+
+		// Single product lookups are counted but not timed.
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName lookups = new ObjectName("SalesSystem:type=InventoryCall,name=getStockLevel");
+		System.out.printf("%-35s count %,d, successes %,d%n",
+				"InventoryCall,name=getStockLevel", server.getAttribute(lookups, "Count"),
+				server.getAttribute(lookups, "Successes"));
+
+		for (String name : new String[] { "InventoryCall,name=removeStock",
+				"Stage,name=addPurchase", "Stage,name=finaliseOrder",
+				"Stage,name=renderInvoice" }) {
+			ObjectName objectName = new ObjectName("SalesSystem:type=" + name);
+			System.out.printf("%-35s count %,d, mean %.2f us, p50 %.2f us, p99 %.2f us%n",
+					name, server.getAttribute(objectName, "Count"),
+					server.getAttribute(objectName, "MeanMicros"),
+					server.getAttribute(objectName, "P50Micros"),
+					server.getAttribute(objectName, "P99Micros"));
+		}
+		SalesMetrics.disable();
+	}
+
+	// Opens 10,000 sessions, each with a one line invoice, to weigh them, then has
+	// every session place a run of orders at once.
+	private static void sessions() throws Exception {
+		String[] productIDs = productIDs(10_000);
+		int clerks = 10_000, ordersPerClerk = 20;
+
+		try (OrderEngine engine = new OrderEngine(catalog(productIDs));
+				SessionManager manager = new SessionManager(engine)) {
+			ClerkSession[] sessions = new ClerkSession[clerks];
+			long heapBefore = usedHeap();
+			for (int clerk = 0; clerk < clerks; clerk++) {
+				sessions[clerk] = manager.openSession();
+				sessions[clerk].newInvoice("Clerk " + clerk, "12 Joe Road", "Australia",
+						"1300 563 563");
+				sessions[clerk].addPurchase(pick(productIDs, clerk, 0), 1).join();
+			}
+			System.out.printf("sessions: %,d open on %s threads, %,d bytes each%n", clerks,
+					manager.isVirtual() ? "virtual" : "pooled",
+					(usedHeap() - heapBefore) / clerks);
+
+			for (int run = 1; run <= 3; run++) {
+				long start = System.nanoTime();
+				List<CompletableFuture<OrderResult>> finalised = new ArrayList<>();
+
+				// Every clerk's orders are sent at once; each session carries out its
+				// own in turn.
+				for (int order = 0; order < ordersPerClerk; order++) {
+					for (int clerk = 0; clerk < clerks; clerk++) {
+						ClerkSession session = sessions[clerk];
+						session.newInvoice("Clerk " + clerk, "12 Joe Road", "Australia",
+								"1300 563 563");
+						for (int line = 0; line < 3; line++)
+							session.addPurchase(pick(productIDs, clerk, order * 3 + line), 1);
+						session.addDelivery("Sydney", "Australia");
+						finalised.add(session.finalise());
+					}
+				}
+				for (CompletableFuture<OrderResult> result : finalised)
+					sink.add(result.join().getInvoice().getGrandTotalCents());
+
+				long nanos = System.nanoTime() - start;
+				System.out.printf("sessions %d: %,d orders from %,d clerks in %,d ms, %,.0f orders/s%n",
+						run, finalised.size(), clerks, nanos / 1_000_000,
+						finalised.size() * 1e9 / nanos);
+			}
+		}
+	}
+
+	// Places orders through a SalesHttpServer on the loopback interface from each
+	// thread count, timing every request, then lists a large inventory. Requests
+	// are written whole to a socket per thread, kept alive between them, so what
+	// is timed is the server rather than an HTTP client.
+	private static void http() throws Exception {
+		String[] productIDs = productIDs(10_000);
+
+		try (OrderEngine engine = new OrderEngine(catalog(productIDs));
+				SalesHttpServer server = new SalesHttpServer(engine,
+						new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+			for (int threads : THREAD_COUNTS) {
+				HttpConnection[] connections = new HttpConnection[threads];
+				for (int thread = 0; thread < threads; thread++)
+					connections[thread] = new HttpConnection(server.getPort());
+
+				Operation order = (thread, i) -> {
+					HttpConnection connection = connections[thread];
+					String invoice = connection.post("/invoices",
+							"{\"name\":\"Joe Citizen\",\"address\":\"12 Joe Road\","
+									+ "\"country\":\"Australia\",\"phoneNumber\":\"1300 563 563\"}");
+					String invoiceID = invoice.substring(invoice.lastIndexOf(':') + 1,
+							invoice.indexOf('}'));
+					connection.post("/invoices/" + invoiceID + "/purchases",
+							"{\"productID\":\"" + pick(productIDs, thread, i)
+									+ "\",\"quantity\":1}");
+					return connection.post("/invoices/" + invoiceID + "/finalise", "")
+							.length();
+				};
+
+				run(threads, WARM_UP_MILLIS, order);
+				for (HttpConnection connection : connections)
+					connection.requests = 0;
+				run(threads, MEASURE_MILLIS, order);
+
+				int requests = 0;
+				for (HttpConnection connection : connections)
+					requests += connection.requests;
+				long[] latencies = new long[requests];
+				int at = 0;
+				for (HttpConnection connection : connections) {
+					System.arraycopy(connection.latencies, 0, latencies, at,
+							connection.requests);
+					at += connection.requests;
+					connection.close();
+				}
+				Arrays.sort(latencies);
+
+				report("http requests", productIDs.length, threads,
+						requests * 1000.0 / MEASURE_MILLIS);
+				System.out.printf("http %d threads: p50 %,.0f us, p99 %,.0f us%n", threads,
+						latencies[requests / 2] / 1000.0,
+						latencies[(int) (requests * 0.99)] / 1000.0);
+			}
+		}
+
+		String[] catalogIDs = productIDs(1_000_000);
+		try (OrderEngine engine = new OrderEngine(catalog(catalogIDs));
+				SalesHttpServer server = new SalesHttpServer(engine,
+						new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+			HttpClient client = HttpClient.newHttpClient();
+			HttpRequest request = HttpRequest
+					.newBuilder(URI.create("http://localhost:" + server.getPort() + "/inventory"))
+					.build();
+
+			for (int run = 1; run <= 3; run++) {
+				long start = System.nanoTime();
+				long bytes = 0;
+				try (InputStream in = client.send(request, HttpResponse.BodyHandlers.ofInputStream())
+						.body()) {
+					byte[] buffer = new byte[64 << 10];
+					for (int read; (read = in.read(buffer)) >= 0;)
+						bytes += read;
+				}
+				long nanos = System.nanoTime() - start;
+				System.out.printf("http inventory %d: %,d products, %,d KB in %,d ms%n", run,
+						catalogIDs.length, bytes >> 10, nanos / 1_000_000);
+			}
+		}
+	}
+
+	// A kept-alive HTTP/1.1 connection sending JSON requests, timing each one.
+	private static final class HttpConnection implements Closeable {
+		private final Socket socket;
+		private final OutputStream out;
+		private final DataInputStream in;
+
+		long[] latencies = new long[1024];
+		int requests;
+
+		HttpConnection(int port) throws IOException {
+			this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			this.socket.setTcpNoDelay(true);
+			this.out = this.socket.getOutputStream();
+			this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+		}
+
+		// Sends a POST and returns the response body.
+		String post(String path, String json) throws IOException {
+			byte[] body = json.getBytes(StandardCharsets.UTF_8);
+			byte[] head = ("POST " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+					+ "Content-Type: application/json\r\nContent-Length: " + body.length
+					+ "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			byte[] request = Arrays.copyOf(head, head.length + body.length);
+			System.arraycopy(body, 0, request, head.length, body.length);
+
+			long start = System.nanoTime();
+			this.out.write(request);
+			this.out.flush();
+
+			String status = readLine();
+			int length = -1;
+			for (String header; !(header = readLine()).isEmpty();)
+				if (header.regionMatches(true, 0, "Content-Length:", 0, 15))
+					length = Integer.parseInt(header.substring(15).trim());
+			if (length < 0)
+				throw new IOException("No Content-Length for " + path);
+			byte[] response = new byte[length];
+			this.in.readFully(response);
+			long latency = System.nanoTime() - start;
+
+			if (this.requests == this.latencies.length)
+				this.latencies = Arrays.copyOf(this.latencies, this.requests * 2);
+			this.latencies[this.requests++] = latency;
+
+			if (status.contains(" 5"))
+				throw new IOException(path + " failed: " + status);
+			return new String(response, StandardCharsets.UTF_8);
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int c; (c = this.in.read()) != '\n';) {
+				if (c < 0)
+					throw new EOFException("Connection closed");
+				if (c != '\r')
+					line.append((char) c);
+			}
+			return line.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.socket.close();
+		}
+	}
+
+	// One order of three lines, delivered and insured. Returns its grand total in
+	// cents.
+	private static long order(OrderEngine engine, String[] productIDs, int thread, long i) {
+		long invoiceID = engine.newInvoice("Joe Citizen", "12 Joe Road", "Australia",
+				"1300 563 563");
+
+		for (int line = 0; line < 3; line++)
+			engine.addPurchase(invoiceID, pick(productIDs, thread, i * 3 + line), 1 + line);
+
+		engine.addDelivery(invoiceID, "Sydney", "Australia");
+		engine.addInsurance(invoiceID);
+		return engine.finalise(invoiceID).getInvoice().getGrandTotalCents();
+	}
+
+	// Archives a million two line invoices, then scans them back a few times,
+	// reporting each scan.
+	private static void archive() throws Exception {
+		Path directory = Files.createTempDirectory("invoices");
+		int invoices = 1_000_000;
+		Invoice2 invoice = invoice(2);
+
+		try (InvoiceArchive archive = new InvoiceArchive(directory)) {
+			long start = System.nanoTime();
+			for (int i = 0; i < invoices; i++)
+				archive.append(invoice);
+			archive.sync();
+			System.out.printf("archive append: %,d invoices in %,d ms%n", invoices,
+					(System.nanoTime() - start) / 1_000_000);
+
+			long bytes = 0;
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+				for (Path segment : segments)
+					bytes += Files.size(segment);
+			}
+
+			for (int run = 1; run <= 5; run++) {
+				long[] total = new long[1];
+				start = System.nanoTime();
+				archive.scan(record -> total[0] += record.getGrandTotalCents());
+				long nanos = System.nanoTime() - start;
+
+				sink.add(total[0]);
+				System.out.printf("archive scan %d: %,d invoices in %,d ms, %,.0f MB/s%n", run,
+						invoices, nanos / 1_000_000, bytes * 1000.0 / nanos);
+			}
+		} finally {
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+				for (Path segment : segments)
+					Files.delete(segment);
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// Exports a million archived three line invoices in each format to a channel
+	// that only counts what it is sent, a few times each.
+	private static void export() throws Exception {
+		Path directory = Files.createTempDirectory("invoices");
+		int invoices = 1_000_000;
+		Invoice2 invoice = invoice(3);
+		long[] bytes = new long[1];
+
+		WritableByteChannel counter = new WritableByteChannel() {
+			public int write(ByteBuffer source) {
+				int count = source.remaining();
+				source.position(source.limit());
+				bytes[0] += count;
+				return count;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		};
+
+		try (InvoiceArchive archive = new InvoiceArchive(directory)) {
+			for (int i = 0; i < invoices; i++)
+				archive.append(invoice);
+
+			for (String format : new String[] { "csv", "json" }) {
+				for (int run = 1; run <= 3; run++) {
+					InvoiceExporter exporter = format.equals("csv")
+							? new CsvInvoiceExporter(counter)
+							: new JsonInvoiceExporter(counter);
+					bytes[0] = 0;
+					long heapBefore = usedHeap();
+					long start = System.nanoTime();
+					exporter.export(archive);
+					exporter.flush();
+					long nanos = System.nanoTime() - start;
+
+					System.out.printf(
+							"export %s %d: %,d invoices in %,d ms, %,.0f MB/s, heap %,d -> %,d KB%n",
+							format, run, invoices, nanos / 1_000_000, bytes[0] * 1000.0 / nanos,
+							heapBefore >> 10, usedHeap() >> 10);
+				}
+			}
+		} finally {
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+				for (Path segment : segments)
+					Files.delete(segment);
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// Heap in use after a collection.
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Archives and indexes a million invoices spread over a year, for a thousand
+	// customers buying from a thousand products, then reports queries per second.
+	private static void index() throws Exception {
+		Path directory = Files.createTempDirectory("invoices");
+		Path indexDirectory = directory.resolve("index");
+		int invoices = 1_000_000, customers = 1000, products = 1000, days = 365;
+		long firstDay = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+		long millisPerDay = 24 * 60 * 60 * 1000;
+
+		try (InvoiceArchive archive = new InvoiceArchive(directory)) {
+			InvoiceIndex index = new InvoiceIndex(indexDirectory, archive);
+			long start = System.nanoTime();
+
+			for (int i = 0; i < invoices; i++) {
+				if (i % (invoices / days + 1) == 0)
+					Invoice2.setInvoiceClock(new InvoiceClock(Clock.fixed(Instant
+							.ofEpochMilli(firstDay + i / (invoices / days + 1) * millisPerDay),
+							ZoneOffset.UTC)));
+
+				int customer = i % customers;
+				Invoice2 invoice = new Invoice2("Customer " + customer, "12 Joe Road",
+						"Australia", "0400 " + (100_000 + customer));
+				invoice.purchaseRecordCents("SKU" + i % products, 1, "Product", 100);
+				invoice.purchaseRecordCents("SKU" + i * 7 % products, 2, "Product", 250);
+				index.add(invoice, archive.append(invoice));
+			}
+			archive.sync();
+			index.close();
+			System.out.printf("index append: %,d invoices in %,d ms%n", invoices,
+					(System.nanoTime() - start) / 1_000_000);
+
+			start = System.nanoTime();
+			InvoiceIndex reopened = new InvoiceIndex(indexDirectory, archive);
+			System.out.printf("index open: %,d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+			report("index findByName", invoices, 1, measure(1, (thread, i) -> reopened
+					.findByName("Customer " + i % customers, invoice -> {
+					})));
+			report("index findByPhoneNumber", invoices, 1, measure(1, (thread, i) -> reopened
+					.findByPhoneNumber("0400" + (100_000 + i % customers), invoice -> {
+					})));
+			report("index findByProduct", invoices, 1, measure(1, (thread, i) -> reopened
+					.findByProduct("SKU" + i % products, invoice -> {
+					})));
+			report("index findByDate", invoices, 1, measure(1, (thread, i) -> {
+				long day = firstDay + i % days * millisPerDay;
+				return reopened.findByDate(day, day + millisPerDay, invoice -> {
+				});
+			}));
+			reopened.close();
+		} finally {
+			Invoice2.setInvoiceClock(new InvoiceClock());
+
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(indexDirectory)) {
+				for (Path file : files)
+					Files.delete(file);
+			}
+			Files.delete(indexDirectory);
+			try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+				for (Path segment : segments)
+					Files.delete(segment);
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// Takes invoice ID's from every thread, reserving blocks from a state file.
+	private static void invoiceId() throws Exception {
+		Path stateFile = Files.createTempFile("invoice-ids", ".dat");
+
+		try {
+			InvoiceIdGenerator generator = new InvoiceIdGenerator(stateFile, 0, 1,
+					InvoiceIdGenerator.DEFAULT_BLOCK_SIZE);
+
+			for (int threads : THREAD_COUNTS)
+				report("invoiceid nextId", InvoiceIdGenerator.DEFAULT_BLOCK_SIZE, threads,
+						measure(threads, (thread, i) -> generator.nextId()));
+		} finally {
+			Files.deleteIfExists(stateFile);
+		}
+	}
+
+	// Totals the same basket as doubles, the way Invoice2 used to, and as cents
+	// with Money.total.
+	private static void money() throws Exception {
+		for (int lines : new int[] { 100, 10_000, 1_000_000 }) {
+			double[] prices = new double[lines];
+			long[] priceCents = new long[lines];
+			int[] quantities = new int[lines];
+
+			for (int line = 0; line < lines; line++) {
+				prices[line] = 1 + (line % 100) * 0.25;
+				priceCents[line] = Money.toCents(prices[line]);
+				quantities[line] = 1 + line % 3;
+			}
+
+			report("money double", lines, 1, measure(1, (thread, i) -> {
+				double total = 0;
+				for (int line = 0; line < lines; line++)
+					total += prices[line] * quantities[line];
+				return (long) total;
+			}));
+			report("money cents", lines, 1, measure(1,
+					(thread, i) -> Money.total(priceCents, quantities, lines)));
+		}
+	}
+
+	// Shows the first page of the inventory table after a sale on it, which is
+	// what SalesSystem2.retrieveInventory returns. SalesSystem2 itself cannot be
+	// built without running its menu, so the view is measured directly.
+	private static void inventory() throws Exception {
+		for (int size : CATALOG_SIZES) {
+			String[] productIDs = productIDs(size);
+			Inventory inventory = catalog(productIDs);
+			InventoryView view = new InventoryView(inventory);
+			int pageSize = Math.min(size, InventoryView.DEFAULT_PAGE_SIZE);
+
+			report("inventory page", size, 1, measure(1, (thread, i) -> {
+				mutate(inventory, productIDs, thread, i % pageSize);
+				return view.page(1).length;
+			}));
+		}
+	}
+
+	// Alternates removing and re-ordering one unit, so stock never runs out.
+	private static int mutate(Inventory inventory, String[] productIDs, int thread,
+			long iteration) {
+		String productID = pick(productIDs, thread, iteration >> 1);
+
+		if ((iteration & 1) == 0)
+			return inventory.removeStock(productID, 1);
+		return inventory.orderStock(productID, 1);
+	}
+
+	// Spreads each thread's iterations over the product ID's.
+	private static String pick(String[] productIDs, int thread, long iteration) {
+		return productIDs[(int) ((iteration * 31 + thread * 7919L) % productIDs.length)];
+	}
+
+	// Product ID's "SKU0" to "SKU<count - 1>".
+	private static String[] productIDs(int count) {
+		String[] productIDs = new String[count];
+
+		for (int i = 0; i < count; i++)
+			productIDs[i] = "SKU" + i;
+
+		return productIDs;
+	}
+
+	// An Inventory stocking every product ID with plenty of stock.
+	private static Inventory catalog(String[] productIDs) {
+		return catalog(productIDs, 1_000_000);
+	}
+
+	// An Inventory stocking every product ID with the given stock level.
+	private static Inventory catalog(String[] productIDs, int stockLevel) {
+		int count = productIDs.length;
+		String[] descriptions = new String[count];
+		double[] prices = new double[count];
+		int[] stockLevels = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			descriptions[i] = "Product " + productIDs[i];
+			prices[i] = 1 + (i % 100) * 0.25;
+			stockLevels[i] = stockLevel;
+		}
+
+		return new Inventory("Toy Universe", productIDs, descriptions, prices,
+				stockLevels);
+	}
+
+	// An invoice with the given number of lines.
+	private static Invoice2 invoice(int lines) {
+		Invoice2 invoice = new Invoice2("Joe Citizen", "12 Joe Road", "Australia",
+				"1300 563 563");
+
+		for (int line = 0; line < lines; line++) {
+			double price = 1 + (line % 100) * 0.25;
+			invoice.purchaseRecord("SKU" + line, 1 + line % 3, "Product SKU" + line, price);
+		}
+		return invoice;
+	}
+
+	// Runs the operation on the given number of threads, first to warm up and then
+	// to measure, and returns the measured operations per second.
+	private static double measure(int threads, Operation operation) throws Exception {
+		run(threads, WARM_UP_MILLIS, operation);
+		return run(threads, MEASURE_MILLIS, operation) * 1000.0 / MEASURE_MILLIS;
+	}
+
+	// Runs the operation on every thread until the time is up and returns the
+	// total number of operations completed. Reading the clock costs more than the
+	// quickest operations, so it is read once a batch, and each thread doubles
+	// its batch until one takes BATCH_NANOS. Slow operations stay in batches of
+	// one, so no thread runs much past the time.
+	private static long run(int threads, long millis, Operation operation)
+			throws Exception {
+		LongAdder operations = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		Exception[] failure = new Exception[1];
+
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+					long now = System.nanoTime();
+					long deadline = now + millis * 1_000_000;
+					long iteration = 0, batch = 1, consumed = 0;
+
+					while (now < deadline) {
+						for (long end = iteration + batch; iteration < end; iteration++)
+							consumed += operation.run(thread, iteration);
+
+						long batchStart = now;
+						now = System.nanoTime();
+						if (now - batchStart < BATCH_NANOS)
+							batch <<= 1;
+					}
+
+					operations.add(iteration);
+					sink.add(consumed);
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			});
+			workers[t].start();
+		}
+
+		start.countDown();
+		for (Thread worker : workers)
+			worker.join();
+
+		if (failure[0] != null)
+			throw failure[0];
+
+		return operations.sum();
+	}
+
+	// Prints one result line, with the change against the baseline if there is
+	// one, and keeps it for recording.
+	private static void report(String name, int size, int threads,
+			double operationsPerSecond) {
+		String key = name + " size=" + size + " threads=" + threads;
+		Double previous = baseline.get(key);
+		String change = previous == null ? ""
+				: String.format(" (%+.1f%%)", (operationsPerSecond / previous - 1) * 100);
+
+		System.out.printf("%-28s %9d size %3d threads %,15.0f ops/s%s%n", name, size,
+				threads, operationsPerSecond, change);
+		results.add(key + "\t" + operationsPerSecond);
+	}
+
+	// Reads results saved by an earlier run with --record.
+	private static void readBaseline(Path baselineFile) throws IOException {
+		for (String line : Files.readAllLines(baselineFile)) {
+			int tab = line.lastIndexOf('\t');
+
+			if (tab > 0)
+				baseline.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+		}
+	}
+}
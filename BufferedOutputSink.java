@@ -0,0 +1,139 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Formatter;
+
+/**
+ * A BufferedOutputSink keeps everything printed to it until it is flushed, then
+ * writes it all to its stream in a single write.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Printing to the console, a file or any output stream through the OutputSink
+ * methods.
+ * 
+ * Flushing a screen's worth of output at once.
+ * 
+ * Closing the file or stream once finished.
+ * 
+ * Printing only appends to a buffer, so a screen built from dozens of prints
+ * costs one encode and one write when flushed, rather than a synchronized,
+ * flushed write per line. The buffers are reused, so once they have grown to
+ * fit the largest screen, flushing allocates nothing. A sink must not be shared
+ * between threads.
+ */
+
+public class BufferedOutputSink implements OutputSink, Closeable {
+
+	private final StringBuilder buffer = new StringBuilder(4096);
+	private final Formatter formatter = new Formatter(this.buffer);
+
+	// The stream written to, or null to write to System.out as it is at each
+	// flush.
+	private final OutputStream stream;
+
+	private final CharsetEncoder encoder;
+	private char[] chars = new char[4096];
+	private ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+	// Constructor of BufferedOutputSink writing to the console.
+	public BufferedOutputSink() {
+		this(null, Charset.defaultCharset());
+	}
+
+	// Constructor of BufferedOutputSink writing to the given stream in the given
+	// character set.
+	public BufferedOutputSink(OutputStream stream, Charset charset) {
+		this.stream = stream;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Opens a sink writing to a file in UTF-8, replacing anything already in it.
+	 * 
+	 * @param file The file written to.
+	 * 
+	 * @throws IOException if the file cannot be created.
+	 */
+	public BufferedOutputSink(Path file) throws IOException {
+		this(Files.newOutputStream(file), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void print(CharSequence text) {
+		this.buffer.append(text);
+	}
+
+	@Override
+	public void printf(String format, Object... arguments) {
+		this.formatter.format(format, arguments);
+	}
+
+	/**
+	 * Writes everything printed since the last flush.
+	 * 
+	 * @throws UncheckedIOException if the stream cannot be written.
+	 */
+	@Override
+	public void flush() {
+		if (this.buffer.length() == 0)
+			return;
+
+		ByteBuffer encoded = encode();
+		OutputStream stream = this.stream == null ? System.out : this.stream;
+		try {
+			stream.write(encoded.array(), 0, encoded.position());
+			stream.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.buffer.setLength(0);
+	}
+
+	// Flushes, then closes the stream. The console is left open.
+	@Override
+	public void close() throws IOException {
+		flush();
+		if (this.stream != null)
+			this.stream.close();
+	}
+
+	// Encodes the buffer into the byte buffer, growing it until everything fits.
+	private ByteBuffer encode() {
+		// Encoders are much faster over an array than over a StringBuilder.
+		int length = this.buffer.length();
+		if (this.chars.length < length)
+			this.chars = new char[Math.max(length, this.chars.length * 2)];
+		this.buffer.getChars(0, length, this.chars, 0);
+
+		CharBuffer text = CharBuffer.wrap(this.chars, 0, length);
+		ByteBuffer bytes = this.bytes;
+		bytes.clear();
+		this.encoder.reset();
+
+		while (true) {
+			CoderResult result = this.encoder.encode(text, bytes, true);
+			if (result.isUnderflow())
+				result = this.encoder.flush(bytes);
+			if (result.isUnderflow())
+				return bytes;
+
+			// Only running out of room can stop the encoder, as bad input is replaced.
+			ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+			larger.put(bytes.flip());
+			this.bytes = bytes = larger;
+		}
+	}
+}
@@ -0,0 +1,500 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A CatalogLoader builds an Inventory from a product catalog file.
+ * 
+ * The catalog is a UTF-8 CSV file with one product per line:
+ * 
+ * productID,description,price,stockLevel
+ * 
+ * An optional header line whose first field is "productID" is skipped, as are
+ * blank lines. The price and stock level are read from the end of the line, so
+ * descriptions may contain commas. Fields may also be quoted as in RFC 4180,
+ * with a quote inside a quoted field written twice, though a quoted field may
+ * not span lines. Prices are decimal numbers such as 12, 12.5 or .50.
+ * 
+ * A line that cannot be read is skipped rather than failing the load, and is
+ * reported by number through getRejectedLines.
+ * 
+ * The file is memory-mapped and split into one chunk per thread. Each chunk is
+ * scanned twice in parallel: once to count its products, so every chunk knows
+ * where its products go in the catalog arrays, and once to parse them straight
+ * into those arrays. No object is created per line apart from the ID and
+ * description Strings the Inventory keeps.
+ */
+
+public class CatalogLoader {
+
+	private final int threads;
+	private long loadMillis;
+	private List<String> rejectedLines = new ArrayList<>();
+
+	// Constructs a loader using one thread per available processor.
+	public CatalogLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	// Constructs a loader using the given number of threads.
+	public CatalogLoader(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("A loader needs at least one thread");
+
+		this.threads = threads;
+	}
+
+	// Accessor to report how long the last load took, in milliseconds.
+	public long getLoadMillis() {
+		return this.loadMillis;
+	}
+
+	// Accessor for why each line skipped by the last load was skipped, in file
+	// order, such as "Line 12: price is not a number".
+	public List<String> getRejectedLines() {
+		return this.rejectedLines;
+	}
+
+	/**
+	 * Loads the catalog file into a new Inventory.
+	 * 
+	 * @param companyName The name of the company for which inventory is being
+	 *                    managed.
+	 * @param catalogFile The catalog file to load.
+	 * 
+	 * @return an Inventory holding every product in the catalog that could be
+	 *         read.
+	 * 
+	 * @throws IOException if the file cannot be read, or a product ID appears more
+	 *                     than once.
+	 */
+	public Inventory load(String companyName, Path catalogFile) throws IOException {
+		return load(companyName, catalogFile, null);
+	}
+
+	/**
+	 * Loads the catalog file into a new Inventory whose prices and stock levels
+	 * persist in a column file.
+	 * 
+	 * If the column file already exists, its prices and stock levels take the
+	 * place of the ones in the catalog.
+	 * 
+	 * @param companyName The name of the company for which inventory is being
+	 *                    managed.
+	 * @param catalogFile The catalog file to load.
+	 * @param columnFile  The file holding prices and stock levels, or null to
+	 *                    keep them in memory only.
+	 * 
+	 * @return an Inventory holding every product in the catalog that could be
+	 *         read.
+	 * 
+	 * @throws IOException if a file cannot be read, or a product ID appears more
+	 *                     than once.
+	 */
+	public Inventory load(String companyName, Path catalogFile, Path columnFile)
+			throws IOException {
+		long start = System.nanoTime();
+
+		ByteBuffer catalog;
+		try (FileChannel channel = FileChannel.open(catalogFile, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(catalogFile + " is too large to load");
+
+			catalog = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		int[] chunkStarts = chunkStarts(catalog);
+		int chunks = chunkStarts.length - 1;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks));
+
+		try {
+			// First pass: count the lines and products in each chunk.
+			List<Future<int[]>> counts = new ArrayList<>();
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				int from = chunkStarts[chunk], to = chunkStarts[chunk + 1];
+				counts.add(pool.submit(() -> countLines(catalog, from, to)));
+			}
+
+			int[] firstProduct = new int[chunks + 1];
+			int[] firstLine = new int[chunks + 1];
+			firstLine[0] = chunkStarts[0] > (hasByteOrderMark(catalog) ? 3 : 0) ? 2 : 1;
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				int[] count = join(counts.get(chunk));
+				firstLine[chunk + 1] = firstLine[chunk] + count[0];
+				firstProduct[chunk + 1] = firstProduct[chunk] + count[1];
+			}
+
+			int productCount = firstProduct[chunks];
+			String[] productIDs = new String[productCount];
+			String[] descriptions = new String[productCount];
+			long[] priceCents = new long[productCount];
+			int[] stockLevels = new int[productCount];
+
+			// Second pass: parse each chunk into its own range of the arrays.
+			List<Future<Integer>> parses = new ArrayList<>();
+			List<List<String>> rejects = new ArrayList<>();
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				int from = chunkStarts[chunk], to = chunkStarts[chunk + 1];
+				int product = firstProduct[chunk], line = firstLine[chunk];
+				List<String> chunkRejects = new ArrayList<>();
+				rejects.add(chunkRejects);
+				parses.add(pool.submit(() -> parseLines(catalog, from, to, product, line,
+						productIDs, descriptions, priceCents, stockLevels, chunkRejects)));
+			}
+
+			// Close the gaps skipped lines left at the end of each chunk's range.
+			int loaded = 0;
+			this.rejectedLines = new ArrayList<>();
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				int parsed = join(parses.get(chunk));
+				int from = firstProduct[chunk];
+				if (from != loaded) {
+					System.arraycopy(productIDs, from, productIDs, loaded, parsed);
+					System.arraycopy(descriptions, from, descriptions, loaded, parsed);
+					System.arraycopy(priceCents, from, priceCents, loaded, parsed);
+					System.arraycopy(stockLevels, from, stockLevels, loaded, parsed);
+				}
+				loaded += parsed;
+				this.rejectedLines.addAll(rejects.get(chunk));
+			}
+			boolean trim = loaded < productCount;
+			String[] loadedIDs = trim ? Arrays.copyOf(productIDs, loaded) : productIDs;
+			String[] loadedDescriptions = trim ? Arrays.copyOf(descriptions, loaded)
+					: descriptions;
+			long[] loadedPrices = trim ? Arrays.copyOf(priceCents, loaded) : priceCents;
+			int[] loadedStock = trim ? Arrays.copyOf(stockLevels, loaded) : stockLevels;
+
+			Inventory inventory = columnFile == null
+					? new Inventory(companyName, loadedIDs, loadedDescriptions,
+							loadedPrices, loadedStock)
+					: new Inventory(companyName, loadedIDs, loadedDescriptions,
+							loadedPrices, loadedStock, columnFile);
+
+			this.loadMillis = (System.nanoTime() - start) / 1_000_000;
+			return inventory;
+		} catch (IllegalArgumentException e) {
+			throw new IOException(catalogFile + ": " + e.getMessage(), e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// Splits the catalog into chunks that each start at the beginning of a line,
+	// skipping the header line if there is one. Returns the chunk start positions
+	// followed by the end of the file.
+	private int[] chunkStarts(ByteBuffer catalog) {
+		int size = catalog.limit();
+		int first = hasByteOrderMark(catalog) ? 3 : 0;
+
+		if (startsWithHeader(catalog, first))
+			first = nextLine(catalog, first, size);
+
+		int chunks = (int) Math.max(1, Math.min(threads * 4L, (size - first) / (64 * 1024)));
+		int[] starts = new int[chunks + 1];
+		starts[0] = first;
+
+		for (int chunk = 1; chunk < chunks; chunk++) {
+			int split = first + (int) ((long) (size - first) * chunk / chunks);
+			starts[chunk] = Math.max(starts[chunk - 1], nextLine(catalog, split - 1, size));
+		}
+		starts[chunks] = size;
+
+		return starts;
+	}
+
+	// Whether the file starts with a UTF-8 byte order mark.
+	private static boolean hasByteOrderMark(ByteBuffer catalog) {
+		return catalog.limit() >= 3 && catalog.get(0) == (byte) 0xEF
+				&& catalog.get(1) == (byte) 0xBB && catalog.get(2) == (byte) 0xBF;
+	}
+
+	// Whether the first field from start is the "productID" header.
+	private static boolean startsWithHeader(ByteBuffer catalog, int start) {
+		String header = "productid,";
+
+		if (catalog.limit() - start < header.length())
+			return false;
+
+		for (int i = 0; i < header.length(); i++)
+			if (Character.toLowerCase(catalog.get(start + i)) != header.charAt(i))
+				return false;
+
+		return true;
+	}
+
+	// Position just after the next line feed at or after from, or the end.
+	private static int nextLine(ByteBuffer catalog, int from, int to) {
+		for (int i = Math.max(from, 0); i < to; i++)
+			if (catalog.get(i) == '\n')
+				return i + 1;
+
+		return to;
+	}
+
+	// Counts the lines, and the non-blank lines, between from and to.
+	private static int[] countLines(ByteBuffer catalog, int from, int to) {
+		int lines = 0, products = 0;
+
+		for (int lineStart = from; lineStart < to;) {
+			int lineEnd = lineEnd(catalog, lineStart, to);
+
+			lines++;
+			if (trimEnd(catalog, lineStart, lineEnd) > lineStart)
+				products++;
+
+			lineStart = lineEnd + 1;
+		}
+		return new int[] { lines, products };
+	}
+
+	// Parses the non-blank lines between from and to into the catalog arrays,
+	// starting at position product, where the first line is numbered line. A
+	// line that cannot be read is added to rejects instead. Returns the number of
+	// products parsed.
+	private static int parseLines(ByteBuffer catalog, int from, int to, int product,
+			int line, String[] productIDs, String[] descriptions, long[] priceCents,
+			int[] stockLevels, List<String> rejects) {
+		byte[] text = new byte[256];
+		int first = product;
+
+		for (int lineStart = from; lineStart < to; line++) {
+			int lineEnd = lineEnd(catalog, lineStart, to);
+			int end = trimEnd(catalog, lineStart, lineEnd);
+
+			if (end > lineStart) {
+				if (text.length < end - lineStart)
+					text = new byte[end - lineStart];
+
+				String reject = indexOf(catalog, lineStart, end, '"') >= 0
+						? parseQuoted(catalog, lineStart, end, text, product, productIDs,
+								descriptions, priceCents, stockLevels)
+						: parseLine(catalog, lineStart, end, text, product, productIDs,
+								descriptions, priceCents, stockLevels);
+
+				if (reject == null)
+					product++;
+				else
+					rejects.add("Line " + line + ": " + reject);
+			}
+
+			lineStart = lineEnd + 1;
+		}
+		return product - first;
+	}
+
+	// Parses a line without quotes into position product of the catalog arrays.
+	// Returns why the line cannot be read, or null once it has been.
+	private static String parseLine(ByteBuffer catalog, int lineStart, int end,
+			byte[] text, int product, String[] productIDs, String[] descriptions,
+			long[] priceCents, int[] stockLevels) {
+		// Fields are found from both ends: ID up to the first comma, stock level
+		// and price after the last two, description in between.
+		int idEnd = indexOf(catalog, lineStart, end, ',');
+		int stockStart = lastIndexOf(catalog, lineStart, end) + 1;
+		int priceStart = lastIndexOf(catalog, lineStart, stockStart - 1) + 1;
+
+		if (idEnd < 0 || priceStart <= idEnd + 1)
+			return "expected productID,description,price,stockLevel";
+
+		long cents = parseCents(catalog, priceStart, stockStart - 1);
+		long stockLevel = parseWhole(catalog, stockStart, end);
+		if (cents < 0)
+			return "price is not a number";
+		if (stockLevel < 0 || stockLevel > Integer.MAX_VALUE)
+			return "stock level is not a whole number";
+
+		productIDs[product] = text(catalog, lineStart, idEnd, text);
+		descriptions[product] = text(catalog, idEnd + 1, priceStart - 1, text);
+		priceCents[product] = cents;
+		stockLevels[product] = (int) stockLevel;
+		return null;
+	}
+
+	// Parses a line with quoted fields into position product of the catalog
+	// arrays. Any fields between the ID and the price make up the description, so
+	// an unquoted description may still contain commas. Returns why the line
+	// cannot be read, or null once it has been.
+	private static String parseQuoted(ByteBuffer catalog, int lineStart, int end,
+			byte[] text, int product, String[] productIDs, String[] descriptions,
+			long[] priceCents, int[] stockLevels) {
+		catalog.get(lineStart, text, 0, end - lineStart);
+		String csvLine = new String(text, 0, end - lineStart, StandardCharsets.UTF_8);
+
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < csvLine.length(); i++) {
+			char c = csvLine.charAt(i);
+
+			if (quoted) {
+				if (c != '"')
+					field.append(c);
+				else if (i + 1 < csvLine.length() && csvLine.charAt(i + 1) == '"')
+					field.append(csvLine.charAt(i++));
+				else
+					quoted = false;
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString().trim());
+
+		if (quoted)
+			return "quote is never closed";
+		if (fields.size() < 4)
+			return "expected productID,description,price,stockLevel";
+
+		ByteBuffer price = ByteBuffer.wrap(fields.get(fields.size() - 2)
+				.getBytes(StandardCharsets.UTF_8));
+		ByteBuffer stock = ByteBuffer.wrap(fields.get(fields.size() - 1)
+				.getBytes(StandardCharsets.UTF_8));
+		long cents = parseCents(price, 0, price.limit());
+		long stockLevel = parseWhole(stock, 0, stock.limit());
+		if (cents < 0)
+			return "price is not a number";
+		if (stockLevel < 0 || stockLevel > Integer.MAX_VALUE)
+			return "stock level is not a whole number";
+
+		productIDs[product] = fields.get(0);
+		descriptions[product] = String.join(",", fields.subList(1, fields.size() - 2));
+		priceCents[product] = cents;
+		stockLevels[product] = (int) stockLevel;
+		return null;
+	}
+
+	// Position of the line feed ending the line at lineStart, or to.
+	private static int lineEnd(ByteBuffer catalog, int lineStart, int to) {
+		int lineEnd = lineStart;
+
+		while (lineEnd < to && catalog.get(lineEnd) != '\n')
+			lineEnd++;
+
+		return lineEnd;
+	}
+
+	// End of the range once trailing spaces, tabs and carriage returns are cut.
+	private static int trimEnd(ByteBuffer catalog, int from, int to) {
+		while (to > from && catalog.get(to - 1) <= ' ' && catalog.get(to - 1) >= 0)
+			to--;
+
+		return to;
+	}
+
+	// Start of the range once leading spaces and tabs are cut.
+	private static int trimStart(ByteBuffer catalog, int from, int to) {
+		while (from < to && catalog.get(from) <= ' ' && catalog.get(from) >= 0)
+			from++;
+
+		return from;
+	}
+
+	// Position of the first of the given character in the range, or -1.
+	private static int indexOf(ByteBuffer catalog, int from, int to, char c) {
+		for (int i = from; i < to; i++)
+			if (catalog.get(i) == c)
+				return i;
+
+		return -1;
+	}
+
+	// Position of the last comma in the range, or from - 1.
+	private static int lastIndexOf(ByteBuffer catalog, int from, int to) {
+		for (int i = to - 1; i >= from; i--)
+			if (catalog.get(i) == ',')
+				return i;
+
+		return from - 1;
+	}
+
+	// Decodes the trimmed range as UTF-8, using text as scratch space.
+	private static String text(ByteBuffer catalog, int from, int to, byte[] text) {
+		from = trimStart(catalog, from, to);
+		to = trimEnd(catalog, from, to);
+		catalog.get(from, text, 0, to - from);
+		return new String(text, 0, to - from, StandardCharsets.UTF_8);
+	}
+
+	// Parses a whole number in the trimmed range, or returns -1.
+	private static long parseWhole(ByteBuffer catalog, int from, int to) {
+		from = trimStart(catalog, from, to);
+		to = trimEnd(catalog, from, to);
+
+		if (from == to || to - from > 18)
+			return -1;
+
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			int digit = catalog.get(i) - '0';
+
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	// Parses a price in the trimmed range as a whole number of cents, rounding
+	// half up past the second decimal place, or returns -1.
+	private static long parseCents(ByteBuffer catalog, int from, int to) {
+		from = trimStart(catalog, from, to);
+		to = trimEnd(catalog, from, to);
+
+		int point = from;
+		while (point < to && catalog.get(point) != '.')
+			point++;
+
+		// Either side of the point may be left out, as in ".50" or "5.", but
+		// not both.
+		if (to - from <= (point < to ? 1 : 0))
+			return -1;
+		long dollars = point == from ? 0 : parseWhole(catalog, from, point);
+		if (dollars < 0 || dollars > Long.MAX_VALUE / 100 - 1)
+			return -1;
+
+		long cents = 0;
+		for (int place = 0, i = point + 1; i < to; place++, i++) {
+			int digit = catalog.get(i) - '0';
+
+			if (digit < 0 || digit > 9)
+				return -1;
+			if (place < 2)
+				cents = cents * 10 + digit;
+			else if (place == 2 && digit >= 5)
+				cents++;
+		}
+		// pad "5.5" to 50 cents
+		if (to - point - 1 == 1)
+			cents *= 10;
+
+		return dollars * 100 + cents;
+	}
+
+	// Waits for a chunk's task, passing on any IOException it threw.
+	private static <T> T join(Future<T> task) throws IOException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Catalog load was interrupted", e);
+		}
+	}
+}
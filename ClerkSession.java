@@ -0,0 +1,163 @@
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * A ClerkSession is one clerk's conversation with the Sales System, with its
+ * own invoice in progress.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Starting a new invoice, which cancels the session's old one if it was never
+ * finalised.
+ * 
+ * Adding purchases, delivery and insurance to the session's invoice, and
+ * finalising or cancelling it.
+ * 
+ * Closing the session.
+ * 
+ * Every command is queued in the session's mailbox and returns at once with a
+ * future for its OrderResult. The session's commands are carried out one at a
+ * time, in the order given, by whichever thread the SessionManager hands the
+ * mailbox to, so the invoice needs no locking of its own and an idle session
+ * holds no thread at all; it is a queue, a flag and an invoice ID.
+ */
+
+public class ClerkSession {
+
+	private final SessionManager manager;
+	private final OrderEngine engine;
+	private final Executor executor;
+
+	// Commands waiting to run, and whether a thread is running them.
+	private final Queue<Command> mailbox = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	// The invoice in progress, or -1 if there is none. Only touched by commands.
+	private long invoiceID = -1;
+
+	// A queued command and the future its result completes.
+	private static final class Command {
+		final Supplier<OrderResult> command;
+		final CompletableFuture<OrderResult> result = new CompletableFuture<>();
+
+		Command(Supplier<OrderResult> command) {
+			this.command = command;
+		}
+
+		// Runs the command, completing its future however it ends. An Error is
+		// passed on once the future holds it.
+		void run() {
+			try {
+				this.result.complete(this.command.get());
+			} catch (RuntimeException e) {
+				this.result.completeExceptionally(e);
+			} catch (Error e) {
+				this.result.completeExceptionally(e);
+				throw e;
+			}
+		}
+	}
+
+	// Constructor of ClerkSession. Only SessionManager opens sessions.
+	ClerkSession(SessionManager manager, OrderEngine engine, Executor executor) {
+		this.manager = manager;
+		this.engine = engine;
+		this.executor = executor;
+	}
+
+	// Starts a new invoice for a customer.
+	public CompletableFuture<OrderResult> newInvoice(String name, String address,
+			String country, String phoneNumber) {
+		return send(() -> {
+			if (this.invoiceID >= 0)
+				this.engine.cancel(this.invoiceID);
+
+			this.invoiceID = this.engine.newInvoice(name, address, country, phoneNumber);
+			return OrderResult.of(OrderResult.Status.ACCEPTED, this.invoiceID);
+		});
+	}
+
+	public CompletableFuture<OrderResult> addPurchase(String productID, int quantity) {
+		return send(() -> this.engine.addPurchase(this.invoiceID, productID, quantity));
+	}
+
+	public CompletableFuture<OrderResult> addDelivery(String city, String country) {
+		return send(() -> this.engine.addDelivery(this.invoiceID, city, country));
+	}
+
+	public CompletableFuture<OrderResult> addInsurance() {
+		return send(() -> this.engine.addInsurance(this.invoiceID));
+	}
+
+	// Finalises the invoice. The session has no invoice until a new one is
+	// started.
+	public CompletableFuture<OrderResult> finalise() {
+		return send(() -> {
+			OrderResult result = this.engine.finalise(this.invoiceID);
+			this.invoiceID = -1;
+			return result;
+		});
+	}
+
+	// Cancels the invoice, putting its stock back.
+	public CompletableFuture<OrderResult> cancel() {
+		return send(() -> {
+			OrderResult result = this.engine.cancel(this.invoiceID);
+			this.invoiceID = -1;
+			return result;
+		});
+	}
+
+	// Cancels any invoice in progress and closes the session, once every command
+	// already sent has run.
+	public CompletableFuture<OrderResult> close() {
+		return send(() -> {
+			OrderResult result = this.engine.cancel(this.invoiceID);
+			this.invoiceID = -1;
+			this.manager.closed(this);
+			return result;
+		});
+	}
+
+	// Queues a command, and hands the mailbox to a thread unless one already has
+	// it. If the executor takes no more work, such as once the SessionManager is
+	// closed, every queued command fails with the RejectedExecutionException.
+	private CompletableFuture<OrderResult> send(Supplier<OrderResult> command) {
+		Command queued = new Command(command);
+		this.mailbox.add(queued);
+
+		if (this.scheduled.compareAndSet(false, true)) {
+			try {
+				this.executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				Command waiting;
+				while ((waiting = this.mailbox.poll()) != null)
+					waiting.result.completeExceptionally(e);
+				this.scheduled.set(false);
+			}
+		}
+		return queued.result;
+	}
+
+	// Runs every queued command. A command sent just as the mailbox empties is
+	// either run here or hands the mailbox to a new thread, never neither. If a
+	// command throws an Error the mailbox is let go, and the next command sent
+	// hands it to a new thread.
+	private void drain() {
+		do {
+			try {
+				Command command;
+				while ((command = this.mailbox.poll()) != null)
+					command.run();
+			} finally {
+				this.scheduled.set(false);
+			}
+		} while (!this.mailbox.isEmpty() && this.scheduled.compareAndSet(false, true));
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A CsvInvoiceExporter writes invoices as CSV, one row per purchase.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Exporting invoices through the InvoiceExporter methods.
+ * 
+ * The first row names the columns. Each row after it holds the invoice's
+ * details and totals followed by one purchase, so every row can be loaded on
+ * its own; an invoice with no purchases has one row with the purchase columns
+ * left empty. Amounts are in dollars with two decimal places. Text is UTF-8,
+ * quoted when it holds a comma, quote or line break, as RFC 4180 describes.
+ */
+
+public class CsvInvoiceExporter extends InvoiceExporter {
+
+	private static final String HEADER = "invoice_id,date_time,name,address,country,"
+			+ "phone_number,delivery_information,item_total,delivery,insurance,"
+			+ "grand_total,product_id,description,quantity,price,line_total\r\n";
+
+	// Inside quotes, only a quote needs escaping, by doubling it.
+	private static final String[] ESCAPE = new String[128];
+	static {
+		ESCAPE['"'] = "\"\"";
+	}
+
+	private boolean headerWritten;
+
+	// Constructor of CsvInvoiceExporter writing to the given channel.
+	public CsvInvoiceExporter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	// Constructor of CsvInvoiceExporter writing through a heap buffer of the
+	// given size.
+	public CsvInvoiceExporter(WritableByteChannel channel, int bufferBytes) {
+		super(channel, bufferBytes);
+	}
+
+	@Override
+	public void export(InvoiceRecord invoice) throws IOException {
+		if (!this.headerWritten) {
+			putAscii(HEADER);
+			this.headerWritten = true;
+		}
+
+		// Read once, as an archived invoice decodes its text on every call.
+		String dateTime = invoice.getDateTime();
+		String name = invoice.getName();
+		String address = invoice.getAddress();
+		String country = invoice.getCountry();
+		String phoneNumber = invoice.getPhoneNumber();
+		String deliveryInformation = invoice.getDeliveryInformation();
+
+		int purchases = invoice.getPurchaseCount();
+		for (int purchase = 0; purchase < Math.max(purchases, 1); purchase++) {
+			putLong(invoice.getInvoiceID());
+			put(',');
+			putField(dateTime);
+			putField(name);
+			putField(address);
+			putField(country);
+			putField(phoneNumber);
+			putField(deliveryInformation);
+			putCents(invoice.getItemTotalCents());
+			put(',');
+			putCents(invoice.getDeliveryCents());
+			put(',');
+			putCents(invoice.getInsuranceCents());
+			put(',');
+			putCents(invoice.getGrandTotalCents());
+			put(',');
+
+			if (purchases == 0) {
+				putAscii(",,,,\r\n");
+				continue;
+			}
+
+			long priceCents = invoice.getPurchasePriceCents(purchase);
+			int quantity = invoice.getPurchaseQuantity(purchase);
+			putField(invoice.getPurchaseID(purchase));
+			putField(invoice.getPurchaseDescription(purchase));
+			putLong(quantity);
+			put(',');
+			putCents(priceCents);
+			put(',');
+			putCents(Money.multiply(priceCents, quantity));
+			putAscii("\r\n");
+		}
+	}
+
+	// Writes a text field and the comma after it, quoting it only if it needs it.
+	private void putField(String text) throws IOException {
+		if (text != null) {
+			boolean quoted = false;
+			for (int i = 0; i < text.length() && !quoted; i++) {
+				char c = text.charAt(i);
+				quoted = c == ',' || c == '"' || c == '\r' || c == '\n';
+			}
+
+			if (quoted)
+				put('"');
+			putText(text, ESCAPE);
+			if (quoted)
+				put('"');
+		}
+		put(',');
+	}
+}
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A DeliveryRates table holds what delivery costs for each country, city and
+ * parcel weight.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Loading a table from a rates file, or using the built-in table.
+ * 
+ * Finding the delivery cost for a country, city and weight.
+ * 
+ * Listing the countries delivered to.
+ * 
+ * Replacing the table in use, or reloading it when its file has changed,
+ * without restarting.
+ * 
+ * A rates file is a UTF-8 text file with one entry per line, fields separated
+ * by '|'. Blank lines and lines starting with '#' are ignored.
+ * 
+ * country|name|rate|alias,alias,... - a country delivered to, its rate and any
+ * other names it goes by.
+ * 
+ * zone|country|city,city,...|rate - a region or city of a country with its own
+ * rate. A zone line must come after its country's line.
+ * 
+ * tier|country|grams|surcharge - a surcharge added to every rate of a country
+ * for parcels over the given weight. Only the highest tier exceeded applies.
+ * 
+ * Names are matched ignoring case and extra spaces. Every name is stored both
+ * as written and normalised, so a name given as it appears in the file is found
+ * with one hash lookup and nothing else; any other spelling is normalised and
+ * looked up once more.
+ * 
+ * Tables are never changed once built, so a table in use is safe to share
+ * between threads while a new one is loaded.
+ */
+
+public final class DeliveryRates {
+
+	// The rates delivery has always been charged at.
+	private static final String[] DEFAULT_RATES = {
+			"country|Australia|9.95|Aus",
+			"country|New Zealand|20.00|NZ",
+			"country|USA|37.96|America,United States of America" };
+
+	// The table invoices are charged from.
+	private static volatile DeliveryRates current = defaults();
+
+	// Every country, under its name and aliases, as written and normalised.
+	private final Map<String, Country> countries;
+
+	// Country names in the order they were listed.
+	private final List<String> countryNames;
+
+	// The file the table was loaded from and when it was last modified, or null
+	// and 0 for the built-in table.
+	private final Path ratesFile;
+	private final long ratesFileModified;
+
+	private static final class Country {
+		final String name;
+		final long rateCents;
+
+		// Zone rates under the name of each city they cover, as written and
+		// normalised.
+		final Map<String, Long> zones = new HashMap<>();
+
+		// Weights in grams, ascending, and the surcharge for parcels over each.
+		int[] tierGrams;
+		long[] tierSurcharges;
+
+		Country(String name, long rateCents) {
+			this.name = name;
+			this.rateCents = rateCents;
+		}
+	}
+
+	// Builds a table from the lines of a rates file.
+	private DeliveryRates(List<String> lines, Path ratesFile, long ratesFileModified)
+			throws IOException {
+		Map<String, Country> countries = new HashMap<>();
+		List<String> countryNames = new ArrayList<>();
+		Map<Country, TreeMap<Integer, Long>> tiers = new HashMap<>();
+
+		for (int lineNumber = 1; lineNumber <= lines.size(); lineNumber++) {
+			String line = lines.get(lineNumber - 1).trim();
+
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] fields = line.split("\\|", -1);
+			for (int i = 0; i < fields.length; i++)
+				fields[i] = fields[i].trim();
+
+			try {
+				if (fields[0].equals("country") && (fields.length == 3 || fields.length == 4)) {
+					Country country = new Country(fields[1], Money.parse(fields[2]));
+					addName(countries, fields[1], country);
+					if (fields.length == 4 && !fields[3].isEmpty())
+						for (String alias : fields[3].split(","))
+							addName(countries, alias, country);
+					countryNames.add(fields[1]);
+
+				} else if (fields[0].equals("zone") && fields.length == 4) {
+					Country country = country(countries, fields[1]);
+					Long rateCents = Money.parse(fields[3]);
+					for (String city : fields[2].split(",")) {
+						if (country.zones.put(normalise(city), rateCents) != null)
+							throw new IllegalArgumentException(city + " is listed twice");
+						country.zones.putIfAbsent(city.trim(), rateCents);
+					}
+
+				} else if (fields[0].equals("tier") && fields.length == 4) {
+					Country country = country(countries, fields[1]);
+					int grams = Integer.parseInt(fields[2]);
+					if (grams < 0 || tiers.computeIfAbsent(country, c -> new TreeMap<>())
+							.put(grams, Money.parse(fields[3])) != null)
+						throw new IllegalArgumentException("Bad tier of " + grams + " grams");
+
+				} else {
+					throw new IllegalArgumentException("Unknown entry");
+				}
+			} catch (IllegalArgumentException | ArithmeticException e) {
+				throw new IOException("Line " + lineNumber + " of "
+						+ (ratesFile == null ? "the delivery rates" : ratesFile)
+						+ " is malformed: " + e.getMessage(), e);
+			}
+		}
+
+		for (Map.Entry<Country, TreeMap<Integer, Long>> entry : tiers.entrySet()) {
+			Country country = entry.getKey();
+			int tierCount = entry.getValue().size();
+			country.tierGrams = new int[tierCount];
+			country.tierSurcharges = new long[tierCount];
+
+			int tier = 0;
+			for (Map.Entry<Integer, Long> weight : entry.getValue().entrySet()) {
+				country.tierGrams[tier] = weight.getKey();
+				country.tierSurcharges[tier++] = weight.getValue();
+			}
+		}
+
+		this.countries = countries;
+		this.countryNames = Collections.unmodifiableList(countryNames);
+		this.ratesFile = ratesFile;
+		this.ratesFileModified = ratesFileModified;
+	}
+
+	/**
+	 * Loads a table from a rates file.
+	 * 
+	 * @param ratesFile The rates file.
+	 * 
+	 * @return the table.
+	 * 
+	 * @throws IOException if the file cannot be read or a line is malformed.
+	 */
+	public static DeliveryRates load(Path ratesFile) throws IOException {
+		long modified = Files.getLastModifiedTime(ratesFile).toMillis();
+		return new DeliveryRates(Files.readAllLines(ratesFile, StandardCharsets.UTF_8),
+				ratesFile, modified);
+	}
+
+	// Returns the built-in table, which charges the rates delivery has always cost.
+	public static DeliveryRates defaults() {
+		try {
+			return new DeliveryRates(Arrays.asList(DEFAULT_RATES), null, 0);
+		} catch (IOException e) {
+			throw new IllegalStateException("The built-in delivery rates are malformed", e);
+		}
+	}
+
+	// Accessor for the table invoices are charged from.
+	public static DeliveryRates current() {
+		return current;
+	}
+
+	// Sets the table invoices are charged from.
+	public static void setCurrent(DeliveryRates rates) {
+		current = rates;
+	}
+
+	/**
+	 * Loads a rates file and makes it the table invoices are charged from. If the
+	 * file cannot be loaded, the table in use is kept.
+	 * 
+	 * @param ratesFile The rates file.
+	 * 
+	 * @return the new table.
+	 * 
+	 * @throws IOException if the file cannot be read or a line is malformed.
+	 */
+	public static DeliveryRates reload(Path ratesFile) throws IOException {
+		DeliveryRates rates = load(ratesFile);
+		current = rates;
+		return rates;
+	}
+
+	/**
+	 * Reloads the table in use if it came from a file that has changed since. If
+	 * the file cannot be loaded, the table in use is kept.
+	 * 
+	 * @return the table now in use.
+	 * 
+	 * @throws IOException if the changed file cannot be read or a line is
+	 *                     malformed.
+	 */
+	public static DeliveryRates refresh() throws IOException {
+		DeliveryRates rates = current;
+
+		if (rates.ratesFile != null && Files.getLastModifiedTime(rates.ratesFile)
+				.toMillis() != rates.ratesFileModified)
+			rates = reload(rates.ratesFile);
+
+		return rates;
+	}
+
+	/**
+	 * Finds what delivering a parcel costs.
+	 * 
+	 * @param country     The country delivered to, by name or alias.
+	 * @param city        The city or region delivered to, or null to charge the
+	 *                    country's rate.
+	 * @param weightGrams The weight of the parcel.
+	 * 
+	 * @return the cost in cents, or -1 if the country is not delivered to.
+	 */
+	public long getRateCents(String country, String city, int weightGrams) {
+		Country rates = find(this.countries, country);
+
+		if (rates == null)
+			return -1;
+
+		long rateCents = rates.rateCents;
+		if (city != null) {
+			Long zoneCents = find(rates.zones, city);
+			if (zoneCents != null)
+				rateCents = zoneCents;
+		}
+
+		// The highest tier the parcel is over, if any.
+		if (rates.tierGrams != null) {
+			int found = Arrays.binarySearch(rates.tierGrams, weightGrams);
+			int tier = found >= 0 ? found - 1 : -found - 2;
+			if (tier >= 0)
+				rateCents = Money.add(rateCents, rates.tierSurcharges[tier]);
+		}
+		return rateCents;
+	}
+
+	// Returns the name a country is listed under, or null if it is not delivered
+	// to.
+	public String getCountryName(String country) {
+		Country rates = find(this.countries, country);
+		return rates == null ? null : rates.name;
+	}
+
+	// Accessor for the names of the countries delivered to, in the order listed.
+	public List<String> getCountries() {
+		return this.countryNames;
+	}
+
+	// Finds a name as given, then normalised. Normalising is idempotent and no two
+	// entries share a normalised name, so a name as written never finds the wrong
+	// entry.
+	private static <T> T find(Map<String, T> entries, String name) {
+		T entry = entries.get(name);
+		return entry != null ? entry : entries.get(normalise(name));
+	}
+
+	// Registers a country under a name or alias.
+	private static void addName(Map<String, Country> countries, String name,
+			Country country) {
+		if (countries.put(normalise(name), country) != null)
+			throw new IllegalArgumentException(name + " is listed twice");
+		countries.putIfAbsent(name.trim(), country);
+	}
+
+	// Finds a country already listed.
+	private static Country country(Map<String, Country> countries, String name) {
+		Country country = countries.get(normalise(name));
+
+		if (country == null)
+			throw new IllegalArgumentException(name + " is not listed as a country");
+
+		return country;
+	}
+
+	// Lower cases a name and reduces every run of spaces within it to one space.
+	private static String normalise(String name) {
+		String trimmed = name.trim();
+		StringBuilder normalised = null;
+
+		for (int i = 0; i < trimmed.length(); i++) {
+			char c = trimmed.charAt(i);
+			char lower = Character.toLowerCase(c);
+			boolean extraSpace = Character.isWhitespace(c) && i > 0
+					&& Character.isWhitespace(trimmed.charAt(i - 1));
+
+			// Most names are already normalised, so copying only starts at the
+			// first character that changes.
+			if (normalised == null && (lower != c || extraSpace
+					|| (Character.isWhitespace(c) && c != ' '))) {
+				normalised = new StringBuilder(trimmed.length());
+				normalised.append(trimmed, 0, i);
+			}
+			if (normalised != null && !extraSpace)
+				normalised.append(Character.isWhitespace(c) ? ' ' : lower);
+		}
+
+		return normalised == null ? trimmed : normalised.toString();
+	}
+}
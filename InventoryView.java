@@ -0,0 +1,133 @@
+/**
+ * An InventoryView formats the products in an Inventory as a table, one page
+ * at a time.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Finding how many pages the inventory table has.
+ * 
+ * Retrieving the formatted rows of one page, headed by the column titles.
+ * 
+ * Column widths are worked out once, when the view is created, because product
+ * ID's and descriptions never change. Each row is formatted the first time its
+ * page is shown and kept. When the page is shown again, only rows whose stock
+ * level has changed since are formatted again.
+ * 
+ * A view is meant for a single clerk, so it is not safe to share between
+ * threads.
+ */
+
+public class InventoryView {
+
+	// Number of products shown per page unless another size is given.
+	public static final int DEFAULT_PAGE_SIZE = 20;
+
+	private final Inventory inventory;
+	private final String[] productIDs;
+	private final int pageSize;
+	private final int idWidth, descriptionWidth;
+	private final String header, separator;
+
+	// Formatted row for each product, or null until its page is first shown,
+	// and the stock level each row was formatted with.
+	private final String[] rows;
+	private final int[] rowStockLevels;
+
+	// Scratch arrays used to fetch one page of products from the inventory.
+	private final String[] pageIDs, pageDescriptions;
+	private final double[] pagePrices;
+	private final int[] pageStockLevels;
+
+	// Constructor of InventoryView with the default page size.
+	public InventoryView(Inventory inventory) {
+		this(inventory, DEFAULT_PAGE_SIZE);
+	}
+
+	// Constructor of InventoryView. Works out the column widths over the whole
+	// inventory, so every page lines up the same way.
+	public InventoryView(Inventory inventory, int pageSize) {
+		if (pageSize < 1)
+			throw new IllegalArgumentException("A page must hold at least one product");
+
+		this.inventory = inventory;
+		this.productIDs = inventory.productIDs();
+		this.pageSize = pageSize;
+
+		int maxIDLength = "ID".length();
+		int maxDescriptionLength = 0;
+		for (String productID : this.productIDs) {
+			maxIDLength = Math.max(maxIDLength, productID.length());
+			maxDescriptionLength = Math.max(maxDescriptionLength,
+					inventory.getDescription(productID).length());
+		}
+		this.idWidth = maxIDLength;
+		this.descriptionWidth = maxDescriptionLength;
+
+		// Format the header of the table with uniform column widths.
+		this.header = pad("ID", idWidth) + "   " + pad("Description", descriptionWidth)
+				+ "   Price   Quantity";
+		this.separator = "-".repeat(header.length());
+
+		this.rows = new String[this.productIDs.length];
+		this.rowStockLevels = new int[this.productIDs.length];
+
+		int scratch = Math.min(pageSize, this.productIDs.length);
+		this.pageIDs = new String[scratch];
+		this.pageDescriptions = new String[scratch];
+		this.pagePrices = new double[scratch];
+		this.pageStockLevels = new int[scratch];
+	}
+
+	// Number of pages in the table. An empty inventory still has one page.
+	public int getPageCount() {
+		return Math.max(1, (this.productIDs.length + this.pageSize - 1) / this.pageSize);
+	}
+
+	// Returns the header, separator and product rows for a page, numbered from 1.
+	public String[] page(int pageNumber) {
+		if (pageNumber < 1 || pageNumber > getPageCount())
+			throw new IllegalArgumentException("There is no page " + pageNumber);
+
+		int first = (pageNumber - 1) * this.pageSize;
+		int count = Math.min(this.pageSize, this.productIDs.length - first);
+
+		// Fetch the page's current details in one pass over the inventory.
+		String[] ids = this.pageIDs;
+		if (count < ids.length)
+			ids = new String[count];
+		System.arraycopy(this.productIDs, first, ids, 0, count);
+		this.inventory.getProducts(ids, this.pageDescriptions, this.pagePrices,
+				this.pageStockLevels);
+
+		String[] formattedPage = new String[count + 2];
+		formattedPage[0] = this.header;
+		formattedPage[1] = this.separator;
+
+		// Format only the rows that are new or whose stock level has changed.
+		for (int i = 0; i < count; i++) {
+			int product = first + i;
+
+			if (this.rows[product] == null
+					|| this.rowStockLevels[product] != this.pageStockLevels[i]) {
+				this.rows[product] = String.format("%s | %s | %.2f | %s",
+						pad(this.productIDs[product], this.idWidth),
+						pad(this.pageDescriptions[i], this.descriptionWidth),
+						this.pagePrices[i], this.pageStockLevels[i]);
+				this.rowStockLevels[product] = this.pageStockLevels[i];
+			}
+			formattedPage[i + 2] = this.rows[product];
+		}
+		return formattedPage;
+	}
+
+	// Extends a string with spaces to the given width.
+	private static String pad(String text, int width) {
+		int spaceCount = width - text.length();
+
+		if (spaceCount <= 0)
+			return text;
+
+		return text + " ".repeat(spaceCount);
+	}
+}
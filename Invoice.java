@@ -72,22 +72,10 @@ public class Invoice {
 	// If called adds delivery cost to invoice, cost changes depending on delivery
 	// location.
 	public void addDelivery(String city, String country) {
+		long rateCents = DeliveryRates.current().getRateCents(country, city, 0);
 
-		// Adds delivery cost for Australian customer.
-		if (country.equalsIgnoreCase("Australia") || country.equalsIgnoreCase("Aus")) {
-			this.delivery = 9.95;
-			this.deliveryInformation = city + " - " + country;
-		}
-		// Adds delivery cost for New Zealand customer.
-		else if (country.equalsIgnoreCase("New Zealand")
-				|| country.equalsIgnoreCase("NZ")) {
-			this.delivery = 20.00;
-			this.deliveryInformation = city + " - " + country;
-		}
-		// Adds delivery cost for American customer.
-		else if (country.equalsIgnoreCase("USA") || country.equalsIgnoreCase("America")
-				|| country.equalsIgnoreCase("United States of America")) {
-			this.delivery = 37.96;
+		if (rateCents >= 0) {
+			this.delivery = Money.toDollars(rateCents);
 			this.deliveryInformation = city + " - " + country;
 
 			// If customer from other country, this statement appears.
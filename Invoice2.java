@@ -1,5 +1,4 @@
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 
 /**
  * An Invoice class stores all of the data needed for a single Invoice object.
@@ -18,41 +17,70 @@ import java.time.format.DateTimeFormatter;
  * Displaying final invoice object.
  */
 
-public class Invoice2 {
+public class Invoice2 implements InvoiceRecord {
+
+	// Number of purchases an invoice has room for before its columns first grow.
+	private static final int INITIAL_CAPACITY = 8;
+
+	// Issues the ID of every new invoice. Replaced by SalesSystem2 with one that
+	// keeps its place on disk.
+	private static volatile InvoiceIdGenerator invoiceIdGenerator = new InvoiceIdGenerator();
+
+	// Tells every new invoice when it was created. Replaced in tests and replays
+	// by one reading a fixed clock.
+	private static volatile InvoiceClock invoiceClock = new InvoiceClock();
+
+	// Each thread renders invoices into its own reusable buffer.
+	private static final ThreadLocal<InvoiceRenderer> renderers = ThreadLocal
+			.withInitial(InvoiceRenderer::new);
 
 	// Declaring all instance variables necessary to complete an invoice.
+	private final long invoiceID, createdMillis;
 	private String company, name, address, country, phoneNumber;
 	private String formatDateTime, deliveryInformation;
+
+	// Purchases are stored as columns, one array per field, which grow as
+	// needed. Descriptions are shared with Inventory rather than copied, so a
+	// purchase costs a few bytes per column instead of an object.
 	private String[] purchaseDescriptions, purchaseIDs;
-	private double[] purchasePrices;
+	private long[] purchasePrices;
 	private int[] purchaseQuantities;
 	private int currentPurchases;
-	private double itemTotal, insurance, delivery;
+
+	// Running totals, updated as each purchase is recorded. All amounts of money
+	// are held in cents, so totals are exact however many purchases there are.
+	private long itemTotal, insurance, delivery;
+	private long totalQuantity;
+	private int maxDescriptionLength;
 
 	// Constructor of Invoice class. Here all instance variables are initialized.
 	// To create an Invoice object, customer details must be passed.
 	public Invoice2(String name, String address, String country, String phoneNumber) {
 
 		// All instance variable being initialized.
+		this.invoiceID = invoiceIdGenerator.nextId();
 		this.name = name;
 		this.address = address;
 		this.country = country;
 		this.phoneNumber = phoneNumber;
 		this.company = "Toy Universe";
 		this.deliveryInformation = "";
-		this.purchaseIDs = new String[6];
-		this.purchasePrices = new double[6];
-		this.purchaseQuantities = new int[6];
-		this.purchaseDescriptions = new String[6];
+		this.purchaseIDs = new String[INITIAL_CAPACITY];
+		this.purchasePrices = new long[INITIAL_CAPACITY];
+		this.purchaseQuantities = new int[INITIAL_CAPACITY];
+		this.purchaseDescriptions = new String[INITIAL_CAPACITY];
 		this.currentPurchases = 0;
 		this.itemTotal = 0;
+		this.totalQuantity = 0;
+		this.maxDescriptionLength = 0;
 		this.insurance = 0;
 		this.delivery = 0;
 
-		// Reading current time off local machine.
-		LocalDateTime now = LocalDateTime.now();
-		DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm");
-		this.formatDateTime = now.format(formatter);
+		// Reading current time off the invoice clock, once, so the printed time
+		// is always the minute createdMillis falls in.
+		InvoiceClock clock = invoiceClock;
+		this.createdMillis = clock.millis();
+		this.formatDateTime = clock.format(this.createdMillis);
 	}
 
 	// Accessor too let SalesSystem see company name.
@@ -60,63 +88,175 @@ public class Invoice2 {
 		return this.company;
 	}
 
-	// Stores current purchases of the current invoice object.
+	// Sets where the ID's of invoices created from now on come from.
+	public static void setInvoiceIdGenerator(InvoiceIdGenerator generator) {
+		invoiceIdGenerator = generator;
+	}
+
+	// Sets the clock invoices created from now on are dated by.
+	public static void setInvoiceClock(InvoiceClock clock) {
+		invoiceClock = clock;
+	}
+
+	// Accessors for the invoice and customer details.
+	public long getInvoiceID() {
+		return this.invoiceID;
+	}
+
+	public String getDateTime() {
+		return this.formatDateTime;
+	}
+
+	public long getCreatedMillis() {
+		return this.createdMillis;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getAddress() {
+		return this.address;
+	}
+
+	public String getCountry() {
+		return this.country;
+	}
+
+	public String getPhoneNumber() {
+		return this.phoneNumber;
+	}
+
+	public String getDeliveryInformation() {
+		return this.deliveryInformation;
+	}
+
+	// Stores current purchases of the current invoice object, and adds them to the
+	// running totals. The price is rounded to the nearest cent.
 	public void purchaseRecord(String productID, int quantity, String description,
 			double price) {
+		purchaseRecordCents(productID, quantity, description, Money.toCents(price));
+	}
+
+	// Stores current purchases of the current invoice object priced in cents, and
+	// adds them to the running totals.
+	public void purchaseRecordCents(String productID, int quantity, String description,
+			long priceCents) {
+
+		// Grows every column by half again when full, so adding stays cheap on
+		// average however many purchases there are.
+		if (this.currentPurchases == this.purchaseIDs.length) {
+			int capacity = this.currentPurchases + (this.currentPurchases >> 1);
+			this.purchaseIDs = Arrays.copyOf(this.purchaseIDs, capacity);
+			this.purchaseDescriptions = Arrays.copyOf(this.purchaseDescriptions, capacity);
+			this.purchasePrices = Arrays.copyOf(this.purchasePrices, capacity);
+			this.purchaseQuantities = Arrays.copyOf(this.purchaseQuantities, capacity);
+		}
 
 		this.purchaseIDs[this.currentPurchases] = productID;
 		this.purchaseDescriptions[this.currentPurchases] = description;
-		this.purchasePrices[this.currentPurchases] = price;
+		this.purchasePrices[this.currentPurchases] = priceCents;
 		this.purchaseQuantities[this.currentPurchases] = quantity;
 
 		this.currentPurchases++;
+
+		itemTotalCost(quantity, priceCents);
+		this.totalQuantity += quantity;
+		this.maxDescriptionLength = Math.max(this.maxDescriptionLength,
+				description.length());
 	}
 
-	// Formats All purchases too readable strings, aligned to fit in a table.
-	private String[] formatItemStrings() {
+	// Accessors for the number of purchases and the fields of each one. Purchases
+	// are numbered from 0.
+	public int getPurchaseCount() {
+		return this.currentPurchases;
+	}
 
-		// Finds the length of the largest description string
-		String[] formattedPurchases = new String[this.currentPurchases + 2];
+	public String getPurchaseID(int purchase) {
+		return this.purchaseIDs[checkPurchase(purchase)];
+	}
+
+	public String getPurchaseDescription(int purchase) {
+		return this.purchaseDescriptions[checkPurchase(purchase)];
+	}
 
-		int maxDescriptionLength = 0;
-		for (int i = 0; i < this.currentPurchases; i++) {
+	public double getPurchasePrice(int purchase) {
+		return Money.toDollars(this.purchasePrices[checkPurchase(purchase)]);
+	}
 
-			int currentDescriptionLength = this.purchaseDescriptions[i].length();
+	public long getPurchasePriceCents(int purchase) {
+		return this.purchasePrices[checkPurchase(purchase)];
+	}
 
-			if (currentDescriptionLength > maxDescriptionLength)
-				maxDescriptionLength = currentDescriptionLength;
-		}
+	public int getPurchaseQuantity(int purchase) {
+		return this.purchaseQuantities[checkPurchase(purchase)];
+	}
 
-		// Format the header of the table with a uniform description column width.
-		String titleDescription = extendStringWhiteSpace("Description",
-				maxDescriptionLength);
-		formattedPurchases[0] = String.format("%s %7s   %s   %s   %s", "Item No", "ID",
-				titleDescription, "Price", "Quantity");
+	// Accessors for the running totals, in dollars and in cents.
+	public double getItemTotal() {
+		return Money.toDollars(this.itemTotal);
+	}
+
+	public long getItemTotalCents() {
+		return this.itemTotal;
+	}
+
+	public long getTotalQuantity() {
+		return this.totalQuantity;
+	}
 
-		char[] lineSeparator = new char[formattedPurchases[0].length()];
+	public double getDelivery() {
+		return Money.toDollars(this.delivery);
+	}
 
-		for (int i = 0; i < lineSeparator.length; i++)
-			lineSeparator[i] = '-';
+	public long getDeliveryCents() {
+		return this.delivery;
+	}
 
-		formattedPurchases[1] = new String(lineSeparator);
+	public double getInsurance() {
+		return Money.toDollars(this.insurance);
+	}
 
-		// Format each purchase with a uniform description column width.
-		for (int index = 0; index < this.currentPurchases; index++) {
-			String productID = this.purchaseIDs[index];
-			String description = this.purchaseDescriptions[index];
-			double price = this.purchasePrices[index];
-			int quantity = this.purchaseQuantities[index];
+	public long getInsuranceCents() {
+		return this.insurance;
+	}
 
-			description = extendStringWhiteSpace(description, maxDescriptionLength);
+	public long getGrandTotalCents() {
+		return Money.add(Money.add(this.itemTotal, this.delivery), this.insurance);
+	}
 
-			formattedPurchases[index + 2] = String.format(
-					"Item No. %s | %s | %s | %.2f | %s \n", (index + 1), productID,
-					description, price, quantity);
-		}
+	// Accessor for the length of the longest description, which sets the width of
+	// the description column.
+	int getMaxDescriptionLength() {
+		return this.maxDescriptionLength;
+	}
+
+	// Rejects purchase numbers outside the purchases recorded so far.
+	private int checkPurchase(int purchase) {
+		if (purchase < 0 || purchase >= this.currentPurchases)
+			throw new IndexOutOfBoundsException("No purchase " + purchase);
+
+		return purchase;
+	}
+
+	// Formats All purchases too readable strings, aligned to fit in a table.
+	// Package-private so the benchmarks can measure it.
+	String[] formatItemStrings() {
+		InvoiceRenderer renderer = renderers.get();
+		String[] formattedPurchases = new String[this.currentPurchases + 2];
+
+		// Format the header of the table with a uniform description column width.
+		formattedPurchases[0] = renderer.renderHeader(this).toString();
+		formattedPurchases[1] = "-".repeat(formattedPurchases[0].length());
+
+		// Format each purchase with a uniform description column width.
+		for (int index = 0; index < this.currentPurchases; index++)
+			formattedPurchases[index + 2] = renderer.renderPurchase(this, index).toString();
 
 		return formattedPurchases;
 	}
 
+	// Extends a string with spaces to the given length.
 	public String extendStringWhiteSpace(String description, int totalDescriptionLength) {
 
 		int currentLength = description.length();
@@ -125,78 +265,39 @@ public class Invoice2 {
 		if (spaceCount <= 0)
 			return description;
 
-		char[] whiteSpaceChars = new char[spaceCount];
-
-		String whiteSpace = new String(whiteSpaceChars);
-
-		return description + whiteSpace;
-
+		return description + " ".repeat(spaceCount);
 	}
 
 	// Calculates total cost of items added to invoice object.
-	public void itemTotalCost(int quantity, double price) {
-		this.itemTotal += price * quantity;
+	private void itemTotalCost(int quantity, long priceCents) {
+		this.itemTotal = Money.add(this.itemTotal, Money.multiply(priceCents, quantity));
 	}
 
 	// If called adds delivery cost to invoice, cost changes depending on delivery
-	// location.
-	public void addDelivery(String city, String country) {
-
-		// Adds delivery cost for Australian customer.
-		if (country.equalsIgnoreCase("Australia") || country.equalsIgnoreCase("Aus")) {
-			this.delivery = 9.95;
-			this.deliveryInformation = city + " - " + country;
-		}
-		// Adds delivery cost for New Zealand customer.
-		else if (country.equalsIgnoreCase("New Zealand")
-				|| country.equalsIgnoreCase("NZ")) {
-			this.delivery = 20.00;
-			this.deliveryInformation = city + " - " + country;
-		}
-		// Adds delivery cost for American customer.
-		else if (country.equalsIgnoreCase("USA") || country.equalsIgnoreCase("America")
-				|| country.equalsIgnoreCase("United States of America")) {
-			this.delivery = 37.96;
-			this.deliveryInformation = city + " - " + country;
-
-			// If customer from other country, this statement appears.
-		} else
-			System.out.println(
-					"Sorry, we do not deliver to that country, the customer must pick up");
+	// location. Purchases carry no weight, so the lightest rate is charged.
+	// Returns false, leaving the invoice for pick up, if the country is not
+	// delivered to, for the caller to tell the user.
+	public boolean deliverTo(String city, String country) {
+		long rateCents = DeliveryRates.current().getRateCents(country, city, 0);
+
+		if (rateCents < 0)
+			return false;
+
+		this.delivery = rateCents;
+		this.deliveryInformation = city + " - " + country;
+		return true;
 	}
 
 	// If called adds interest to invoice.
 	public void addInsurance() {
-		this.insurance = 9.95;
-	}
-
-	// This method creates and displays the invoice object.
-	// Displays invoice at any time during the order, when called.
-	public void displayInvoice() {
-		System.out.println("\n");
-		System.out.printf("%18s %s \n  %20s \n ", "Invoice ID:", "743285", this.company);
-		System.out.println("\nDate and Time: " + this.formatDateTime);
-		System.out.println("Customer Name: " + this.name);
-		System.out.println("Customer Address: " + this.address);
-		System.out.println("Customer Country: " + this.country);
-		System.out.println("Customer Phone Number: " + this.phoneNumber + "\n");
-
-		String[] formattedProducts = formatItemStrings();
-		for (int i = 0; i < formattedProducts.length; i++)
-			System.out.println(formattedProducts[i]);
-		
-		System.out.println();
-		System.out.printf("%s %1s%.2f \n", "Total Cost of Items:","$", this.itemTotal);
-		System.out.printf("%s %7s%.2f \n", "Delivery Cost:","$", this.delivery);
-		System.out.printf("%s %6s%.2f \n", "Insurance Cost:","$", this.insurance);
-		System.out.printf("%s %4s%.2f \n", "Grand Total Cost:", "$",
-				(this.itemTotal + this.delivery + this.insurance));
-		if (this.deliveryInformation != null && !this.deliveryInformation.isEmpty())
-			System.out.println("\nDelivery Location: " + this.deliveryInformation + "\n");
-		else
-			System.out.println("\nPick up in-store \n");
-		System.out.printf("%20s \n\n\n", "Thankyou for shopping at Toy Universe!");
+		this.insurance = 995;
+	}
 
+	// This method creates and displays the invoice object, at any time during
+	// the order, through the given sink. It appears when the sink is next
+	// flushed.
+	public void displayInvoice(OutputSink out) {
+		out.print(renderers.get().render(this));
 	}
 }
 // There are no bugs in this class.
\ No newline at end of file
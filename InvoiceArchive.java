@@ -0,0 +1,545 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * An InvoiceArchive keeps every finalised invoice in append-only segment files.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Appending a finalised invoice, and waiting until it is safely on disk.
+ * 
+ * Scanning every archived invoice in the order it was appended, from the start
+ * or from a given invoice.
+ * 
+ * Reading a single invoice by its position in the archive.
+ * 
+ * Each invoice is one binary record: its length, a CRC32C checksum and the
+ * invoice's ID, times, amounts in cents, text in UTF-8 and purchases. Records
+ * are appended to the newest segment file until it would grow past the
+ * segment size, and then a new segment is started. Segments are never changed
+ * once written, so old ones may be copied or backed up while the archive is in
+ * use.
+ * 
+ * A scan maps each segment into memory and walks its records in place, handing
+ * one ArchivedInvoice from record to record, so reading an archive costs little
+ * more than reading its files.
+ * 
+ * A record torn by a crash fails its checksum, and the newest segment is cut
+ * back to the last whole record when the archive is opened.
+ */
+
+public class InvoiceArchive implements Closeable {
+
+	// Size a segment is rolled over at unless another size is given.
+	public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+	// Longest string an invoice may hold, in bytes of UTF-8.
+	public static final int MAX_STRING_BYTES = ArchivedInvoice.NULL_STRING - 1;
+
+	// Layout of the segment header: magic number, format version, segment number.
+	private static final int SEGMENT_MAGIC = 0x494E5641;
+	private static final int SEGMENT_VERSION = 1;
+	private static final int SEGMENT_HEADER_BYTES = 16;
+
+	// Layout of the record header: body length, then checksum of the body.
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	private static final String SEGMENT_PREFIX = "invoices-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final CRC32C checksum = new CRC32C();
+
+	// Buffer each record is encoded into before it is written. It grows if a
+	// record outgrows it.
+	private ByteBuffer recordBuffer = ByteBuffer.allocateDirect(4096)
+			.order(ByteOrder.LITTLE_ENDIAN);
+
+	// The segment being appended to, its number and its size.
+	private FileChannel segment;
+	private int segmentNumber;
+	private long segmentSize;
+
+	// Why the end of the newest segment is unknown, or null. Once a torn record
+	// cannot be cut off, nothing more is appended until the archive is reopened
+	// and recovered.
+	private IOException failure;
+
+	// Older segments opened by read, and what read reads a record with.
+	private final Map<Integer, FileChannel> readChannels = new HashMap<>();
+	private ByteBuffer readBuffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+	private final CRC32C readChecksum = new CRC32C();
+	private final ArchivedInvoice readInvoice = new ArchivedInvoice();
+
+	/**
+	 * Opens the archive in a directory with the default segment size, creating
+	 * it if it does not exist yet.
+	 * 
+	 * @param directory The directory holding the segment files.
+	 * 
+	 * @throws IOException if the directory or newest segment cannot be opened.
+	 */
+	public InvoiceArchive(Path directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES);
+	}
+
+	/**
+	 * Opens the archive in a directory, creating it if it does not exist yet.
+	 * 
+	 * @param directory    The directory holding the segment files.
+	 * @param segmentBytes The size a segment is rolled over at.
+	 * 
+	 * @throws IOException              if the directory or newest segment cannot
+	 *                                  be opened.
+	 * @throws IllegalArgumentException if the segment size cannot hold a header.
+	 */
+	public InvoiceArchive(Path directory, int segmentBytes) throws IOException {
+		if (segmentBytes <= SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES)
+			throw new IllegalArgumentException("Segments of " + segmentBytes
+					+ " bytes are too small");
+
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(directory);
+
+		List<Integer> segments = segmentNumbers();
+		if (segments.isEmpty()) {
+			startSegment(1);
+		} else {
+			this.segmentNumber = segments.get(segments.size() - 1);
+			this.segment = FileChannel.open(segmentFile(this.segmentNumber),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.segmentSize = recover(this.segment, this.segmentNumber);
+			this.segment.truncate(this.segmentSize);
+			this.segment.position(this.segmentSize);
+		}
+	}
+
+	/**
+	 * Appends an invoice to the archive. Call sync to make sure it is on disk.
+	 * 
+	 * @param invoice The finalised invoice.
+	 * 
+	 * @return the invoice's position in the archive.
+	 * 
+	 * @throws IOException              if the record cannot be written. Any part
+	 *                                  of it written is cut off again, or if
+	 *                                  that fails too, every later append fails
+	 *                                  until the archive is reopened.
+	 * @throws IllegalArgumentException if a string of the invoice is longer than
+	 *                                  65,534 bytes of UTF-8.
+	 */
+	public synchronized long append(InvoiceRecord invoice) throws IOException {
+		if (this.failure != null)
+			throw new IOException("The archive cannot be appended to after a torn "
+					+ "write; reopen it to recover", this.failure);
+
+		ByteBuffer record = encode(invoice);
+		int recordBytes = record.remaining();
+
+		// A record that fits no segment gets one of its own.
+		if (this.segmentSize + recordBytes > this.segmentBytes
+				&& this.segmentSize > SEGMENT_HEADER_BYTES) {
+			this.segment.force(false);
+			this.segment.close();
+			startSegment(this.segmentNumber + 1);
+		}
+
+		long position = position(this.segmentNumber, this.segmentSize);
+		try {
+			while (record.hasRemaining())
+				this.segment.write(record);
+		} catch (IOException e) {
+			// Cut off whatever part of the record was written, so the next append
+			// starts where this one did and its position is right.
+			try {
+				this.segment.truncate(this.segmentSize);
+				this.segment.position(this.segmentSize);
+			} catch (IOException cutFailed) {
+				e.addSuppressed(cutFailed);
+				this.failure = e;
+			}
+			throw e;
+		}
+		this.segmentSize += recordBytes;
+
+		return position;
+	}
+
+	// Waits until every invoice appended so far is on disk.
+	public synchronized void sync() throws IOException {
+		this.segment.force(false);
+	}
+
+	/**
+	 * Passes every archived invoice to the visitor, oldest first. The invoice
+	 * handed over is only valid until the visitor returns.
+	 * 
+	 * @param visitor Receives each invoice.
+	 * 
+	 * @return the number of invoices scanned.
+	 * 
+	 * @throws IOException if a segment cannot be read, or a record in a segment
+	 *                     other than the newest is damaged.
+	 */
+	public long scan(Consumer<? super InvoiceRecord> visitor) throws IOException {
+		return scan(0, (invoice, position) -> visitor.accept(invoice));
+	}
+
+	/**
+	 * Passes every archived invoice from a position on to the visitor, oldest
+	 * first, with its position. The invoice handed over is only valid until the
+	 * visitor returns.
+	 * 
+	 * @param fromPosition The position of the first invoice to visit, as returned
+	 *                     by append, or 0 to start from the oldest.
+	 * @param visitor      Receives each invoice and its position.
+	 * 
+	 * @return the number of invoices scanned.
+	 * 
+	 * @throws IOException if a segment cannot be read, or a record in a segment
+	 *                     other than the newest is damaged.
+	 */
+	public long scan(long fromPosition, ObjLongConsumer<? super InvoiceRecord> visitor)
+			throws IOException {
+		ArchivedInvoice invoice = new ArchivedInvoice();
+		CRC32C checksum = new CRC32C();
+		long invoices = 0;
+
+		List<Integer> segments;
+		int newestSegment;
+		synchronized (this) {
+			segments = segmentNumbers();
+			newestSegment = this.segmentNumber;
+		}
+
+		int fromSegment = (int) (fromPosition >>> 32);
+		for (int segmentNumber : segments) {
+			if (segmentNumber < fromSegment)
+				continue;
+
+			ByteBuffer records = map(segmentNumber);
+			int end = checkHeader(records, segmentNumber);
+			int offset = segmentNumber == fromSegment
+					? Math.max((int) fromPosition, SEGMENT_HEADER_BYTES)
+					: SEGMENT_HEADER_BYTES;
+
+			while (offset < end) {
+				int bodyBytes = wholeRecord(records, offset, end, checksum);
+
+				if (bodyBytes < 0) {
+					// The newest segment may end in a record still being written.
+					if (segmentNumber == newestSegment)
+						break;
+					throw new IOException(segmentFile(segmentNumber) + " is damaged at byte "
+							+ offset);
+				}
+
+				invoice.moveTo(records, offset + RECORD_HEADER_BYTES);
+				visitor.accept(invoice, position(segmentNumber, offset));
+				invoices++;
+				offset += RECORD_HEADER_BYTES + bodyBytes;
+			}
+		}
+		return invoices;
+	}
+
+	/**
+	 * Reads the invoice at a position and passes it to the visitor. The invoice
+	 * handed over is only valid until the visitor returns.
+	 * 
+	 * @param position The invoice's position, as returned by append.
+	 * @param visitor  Receives the invoice.
+	 * 
+	 * @return true if a whole invoice was found at the position, or false if not.
+	 * 
+	 * @throws IOException if the segment cannot be read.
+	 */
+	public synchronized boolean read(long position,
+			Consumer<? super InvoiceRecord> visitor) throws IOException {
+		int segmentNumber = (int) (position >>> 32);
+		long offset = position & 0xFFFFFFFFL;
+		FileChannel channel = segmentNumber == this.segmentNumber ? this.segment
+				: this.readChannels.get(segmentNumber);
+
+		if (channel == null) {
+			Path file = segmentFile(segmentNumber);
+			if (segmentNumber > this.segmentNumber || !Files.exists(file))
+				return false;
+
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			this.readChannels.put(segmentNumber, channel);
+		}
+
+		ByteBuffer record = this.readBuffer;
+		record.clear().limit(RECORD_HEADER_BYTES);
+		if (offset < SEGMENT_HEADER_BYTES || !readFully(channel, record, offset))
+			return false;
+
+		// A record too big for the segment size has a segment of its own, so the
+		// record is bounded by what the segment holds rather than by that size.
+		int bodyBytes = record.getInt(0);
+		if (bodyBytes < 0 || bodyBytes > channel.size() - offset - RECORD_HEADER_BYTES)
+			return false;
+
+		if (record.capacity() < RECORD_HEADER_BYTES + bodyBytes) {
+			ByteBuffer larger = ByteBuffer
+					.allocate(Math.max(RECORD_HEADER_BYTES + bodyBytes, record.capacity() * 2))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			larger.put(record.flip());
+			this.readBuffer = record = larger;
+		}
+		record.limit(RECORD_HEADER_BYTES + bodyBytes).position(RECORD_HEADER_BYTES);
+		if (!readFully(channel, record, offset + RECORD_HEADER_BYTES))
+			return false;
+
+		if (wholeRecord(record, 0, record.limit(), this.readChecksum) < 0)
+			return false;
+
+		this.readInvoice.moveTo(record, RECORD_HEADER_BYTES);
+		visitor.accept(this.readInvoice);
+		return true;
+	}
+
+	// Forces the newest segment to disk and closes it.
+	@Override
+	public synchronized void close() throws IOException {
+		for (FileChannel channel : this.readChannels.values())
+			channel.close();
+
+		this.segment.force(false);
+		this.segment.close();
+	}
+
+	// Reads from the position until the buffer is full. Returns false if the
+	// file ends first.
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if (count < 0)
+				return false;
+			position += count;
+		}
+		return true;
+	}
+
+	// Encodes an invoice into the record buffer, growing it until it fits, and
+	// returns it ready to write.
+	private ByteBuffer encode(InvoiceRecord invoice) {
+		while (true) {
+			ByteBuffer record = this.recordBuffer;
+			record.clear();
+
+			try {
+				record.position(RECORD_HEADER_BYTES);
+				record.putLong(invoice.getInvoiceID());
+				record.putLong(invoice.getCreatedMillis());
+				record.putLong(invoice.getItemTotalCents());
+				record.putLong(invoice.getDeliveryCents());
+				record.putLong(invoice.getInsuranceCents());
+				putString(record, invoice.getDateTime());
+				putString(record, invoice.getName());
+				putString(record, invoice.getAddress());
+				putString(record, invoice.getCountry());
+				putString(record, invoice.getPhoneNumber());
+				putString(record, invoice.getDeliveryInformation());
+
+				int purchases = invoice.getPurchaseCount();
+				record.putInt(purchases);
+				for (int purchase = 0; purchase < purchases; purchase++) {
+					putString(record, invoice.getPurchaseID(purchase));
+					putString(record, invoice.getPurchaseDescription(purchase));
+					record.putLong(invoice.getPurchasePriceCents(purchase));
+					record.putInt(invoice.getPurchaseQuantity(purchase));
+				}
+			} catch (BufferOverflowException e) {
+				this.recordBuffer = ByteBuffer.allocateDirect(record.capacity() * 2)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				continue;
+			}
+
+			record.flip();
+			record.position(RECORD_HEADER_BYTES);
+			this.checksum.reset();
+			this.checksum.update(record);
+
+			record.putInt(0, record.limit() - RECORD_HEADER_BYTES);
+			record.putInt(4, (int) this.checksum.getValue());
+			record.position(0);
+			return record;
+		}
+	}
+
+	// Writes a string as its length in bytes followed by its UTF-8 encoding.
+	private static void putString(ByteBuffer record, String text) {
+		if (text == null) {
+			record.putShort((short) ArchivedInvoice.NULL_STRING);
+			return;
+		}
+
+		int lengthAt = record.position();
+		record.position(lengthAt + Short.BYTES);
+
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+
+			if (c < 0x80) {
+				record.put((byte) c);
+			} else if (c < 0x800) {
+				record.put((byte) (0xC0 | c >> 6));
+				record.put((byte) (0x80 | c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				record.put((byte) (0xF0 | codePoint >> 18));
+				record.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+				record.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+				record.put((byte) (0x80 | codePoint & 0x3F));
+			} else {
+				// A lone surrogate cannot be encoded, so it is written as '?', as
+				// String.getBytes would.
+				if (Character.isSurrogate(c))
+					c = '?';
+				if (c < 0x80) {
+					record.put((byte) c);
+				} else {
+					record.put((byte) (0xE0 | c >> 12));
+					record.put((byte) (0x80 | c >> 6 & 0x3F));
+					record.put((byte) (0x80 | c & 0x3F));
+				}
+			}
+		}
+
+		int length = record.position() - lengthAt - Short.BYTES;
+		if (length > MAX_STRING_BYTES)
+			throw new IllegalArgumentException("A string of " + length
+					+ " bytes is too long to archive");
+		record.putShort(lengthAt, (short) length);
+	}
+
+	// Creates a new, empty segment and appends to it from now on.
+	private void startSegment(int segmentNumber) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).putLong(segmentNumber).flip();
+
+		this.segment = FileChannel.open(segmentFile(segmentNumber),
+				StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		while (header.hasRemaining())
+			this.segment.write(header);
+
+		this.segmentNumber = segmentNumber;
+		this.segmentSize = SEGMENT_HEADER_BYTES;
+	}
+
+	// Finds the end of the last whole record of the newest segment.
+	private long recover(FileChannel channel, int segmentNumber) throws IOException {
+		if (channel.size() > Integer.MAX_VALUE)
+			throw new IOException(segmentFile(segmentNumber) + " is too large");
+
+		ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		int end = checkHeader(records, segmentNumber);
+		CRC32C checksum = new CRC32C();
+
+		int offset = SEGMENT_HEADER_BYTES;
+		while (offset < end) {
+			int bodyBytes = wholeRecord(records, offset, end, checksum);
+			if (bodyBytes < 0)
+				break;
+			offset += RECORD_HEADER_BYTES + bodyBytes;
+		}
+		return offset;
+	}
+
+	// Returns the body length of the record at offset, or -1 if the record is
+	// cut short or fails its checksum.
+	private static int wholeRecord(ByteBuffer records, int offset, int end,
+			CRC32C checksum) {
+		if (end - offset < RECORD_HEADER_BYTES)
+			return -1;
+
+		int bodyBytes = records.getInt(offset);
+		if (bodyBytes < 0 || bodyBytes > end - offset - RECORD_HEADER_BYTES)
+			return -1;
+
+		checksum.reset();
+		checksum.update(records.duplicate().limit(offset + RECORD_HEADER_BYTES + bodyBytes)
+				.position(offset + RECORD_HEADER_BYTES));
+		return (int) checksum.getValue() == records.getInt(offset + 4) ? bodyBytes : -1;
+	}
+
+	// Maps a whole segment for reading.
+	private ByteBuffer map(int segmentNumber) throws IOException {
+		try (FileChannel channel = FileChannel.open(segmentFile(segmentNumber),
+				StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(segmentFile(segmentNumber) + " is too large");
+
+			// The mapping stays valid after the channel is closed.
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	// Checks a segment's header and returns the segment's length.
+	private int checkHeader(ByteBuffer records, int segmentNumber) throws IOException {
+		if (records.limit() < SEGMENT_HEADER_BYTES || records.getInt(0) != SEGMENT_MAGIC
+				|| records.getInt(4) != SEGMENT_VERSION
+				|| records.getLong(8) != segmentNumber)
+			throw new IOException(segmentFile(segmentNumber) + " is not an invoice segment");
+
+		return records.limit();
+	}
+
+	// Numbers of the segment files in the directory, in ascending order.
+	private List<Integer> segmentNumbers() throws IOException {
+		List<Integer> segments = new ArrayList<>();
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Not a segment the archive wrote.
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private Path segmentFile(int segmentNumber) {
+		return this.directory
+				.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+	}
+
+	// An archive position: the segment number in the high half, the offset of the
+	// record within it in the low half.
+	private static long position(int segmentNumber, long offset) {
+		return (long) segmentNumber << 32 | offset;
+	}
+}
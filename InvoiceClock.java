@@ -0,0 +1,89 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * An InvoiceClock tells invoices the date and time they were created.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Retrieving the current time in milliseconds.
+ * 
+ * Retrieving the current date and time as printed on an invoice, to the
+ * minute, or the date and time of a time already read in milliseconds.
+ * 
+ * The printed date and time only changes once a minute, so it is formatted once
+ * and kept until the minute is over. Every invoice created in the same minute
+ * shares the same string, and creating one formats and allocates nothing.
+ * 
+ * The time comes from a java.time.Clock, so tests and replays can use a fixed
+ * or stepped clock and get the same invoices every run.
+ */
+
+public class InvoiceClock {
+
+	// Layout of the date and time printed on invoices.
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter
+			.ofPattern("dd-MM-yyyy HH:mm");
+
+	private static final long MILLIS_PER_MINUTE = 60_000;
+
+	private final Clock clock;
+
+	// The last minute formatted. Replaced as a whole, so readers never see the
+	// minute of one and the text of another.
+	private volatile Minute cachedMinute;
+
+	private static final class Minute {
+		final long minute;
+		final String text;
+
+		Minute(long minute, String text) {
+			this.minute = minute;
+			this.text = text;
+		}
+	}
+
+	// Constructor of InvoiceClock reading the system clock in the default time
+	// zone.
+	public InvoiceClock() {
+		this(Clock.systemDefaultZone());
+	}
+
+	// Constructor of InvoiceClock reading the given clock.
+	public InvoiceClock(Clock clock) {
+		this.clock = clock;
+		this.cachedMinute = new Minute(Long.MIN_VALUE, null);
+	}
+
+	// Accessor for the current time in milliseconds since the epoch.
+	public long millis() {
+		return this.clock.millis();
+	}
+
+	// Returns the current date and time as "dd-MM-yyyy HH:mm".
+	public String now() {
+		return format(this.clock.millis());
+	}
+
+	// Returns the date and time of the given milliseconds since the epoch as
+	// "dd-MM-yyyy HH:mm", in the clock's time zone.
+	public String format(long millis) {
+		long minute = Math.floorDiv(millis, MILLIS_PER_MINUTE);
+		Minute cached = this.cachedMinute;
+
+		if (cached.minute == minute)
+			return cached.text;
+
+		// Several threads may format a new minute at once; they all get the same
+		// text, and whichever is stored last is kept.
+		String text = LocalDateTime
+				.ofInstant(Instant.ofEpochMilli(minute * MILLIS_PER_MINUTE),
+						this.clock.getZone())
+				.format(FORMATTER);
+		this.cachedMinute = new Minute(minute, text);
+		return text;
+	}
+}
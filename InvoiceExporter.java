@@ -0,0 +1,214 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An InvoiceExporter writes invoices to a channel in a format accounting can
+ * load, such as CSV or JSON lines.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Exporting a single invoice.
+ * 
+ * Exporting every invoice in an InvoiceArchive.
+ * 
+ * Flushing what has been exported, and closing the channel once finished.
+ * 
+ * Every field is encoded straight into one reused buffer, which is written to
+ * the channel whenever it fills. Nothing is built up per invoice or per line,
+ * so exporting millions of invoices takes no more memory than exporting one.
+ * 
+ * CsvInvoiceExporter and JsonInvoiceExporter lay out the invoices; this class
+ * holds the buffer and writes the numbers and text they are made of. An
+ * exporter must not be shared between threads.
+ */
+
+public abstract class InvoiceExporter implements Closeable {
+
+	// Size of the buffer, and so of each write to the channel.
+	public static final int DEFAULT_BUFFER_BYTES = 64 << 10;
+
+	// The smallest buffer a number or character always fits in.
+	public static final int MIN_BUFFER_BYTES = 32;
+
+	// The most bytes one character can be written as: a JSON "\\u0000" escape.
+	private static final int MAX_CHAR_BYTES = 6;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	// Digits of a number, written from the right.
+	private final byte[] digits = new byte[20];
+
+	// Constructor of InvoiceExporter writing to the given channel.
+	protected InvoiceExporter(WritableByteChannel channel) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_BYTES);
+	}
+
+	// Constructor of InvoiceExporter writing to the given channel through a heap
+	// buffer of the given size. Suits exporting an invoice or two into memory,
+	// where a large direct buffer costs more to set up than the export itself.
+	protected InvoiceExporter(WritableByteChannel channel, int bufferBytes) {
+		if (bufferBytes < MIN_BUFFER_BYTES)
+			throw new IllegalArgumentException("Buffer must be at least "
+					+ MIN_BUFFER_BYTES + " bytes");
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferBytes);
+	}
+
+	/**
+	 * Exports one invoice.
+	 * 
+	 * @param invoice The invoice.
+	 * 
+	 * @throws IOException if the channel cannot be written.
+	 */
+	public abstract void export(InvoiceRecord invoice) throws IOException;
+
+	/**
+	 * Exports every invoice in an archive, oldest first.
+	 * 
+	 * @param archive The archive.
+	 * 
+	 * @return the number of invoices exported.
+	 * 
+	 * @throws IOException if the archive cannot be read or the channel cannot be
+	 *                     written.
+	 */
+	public long export(InvoiceArchive archive) throws IOException {
+		try {
+			return archive.scan(invoice -> {
+				try {
+					export(invoice);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Writes everything exported so far to the channel.
+	 * 
+	 * @throws IOException if the channel cannot be written.
+	 */
+	public void flush() throws IOException {
+		this.buffer.flip();
+		while (this.buffer.hasRemaining())
+			this.channel.write(this.buffer);
+		this.buffer.clear();
+	}
+
+	// Flushes, then closes the channel.
+	@Override
+	public void close() throws IOException {
+		flush();
+		this.channel.close();
+	}
+
+	// Makes room for the given number of bytes.
+	protected void ensure(int bytes) throws IOException {
+		if (this.buffer.remaining() < bytes)
+			flush();
+	}
+
+	// Writes a character that is known to be ASCII.
+	protected void put(char c) throws IOException {
+		ensure(1);
+		this.buffer.put((byte) c);
+	}
+
+	// Writes text that is known to be ASCII and need no escaping.
+	protected void putAscii(String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			ensure(1);
+			this.buffer.put((byte) text.charAt(i));
+		}
+	}
+
+	// Writes a whole number in decimal.
+	protected void putLong(long number) throws IOException {
+		ensure(this.digits.length);
+
+		// Counting down in negatives reaches Long.MIN_VALUE too.
+		boolean negative = number < 0;
+		if (!negative)
+			number = -number;
+
+		int start = this.digits.length;
+		do {
+			this.digits[--start] = (byte) ('0' - number % 10);
+			number /= 10;
+		} while (number != 0);
+
+		if (negative)
+			this.buffer.put((byte) '-');
+		this.buffer.put(this.digits, start, this.digits.length - start);
+	}
+
+	// Writes an amount of cents as dollars with two decimal places, e.g. 12.05.
+	protected void putCents(long cents) throws IOException {
+		long dollars = cents / 100;
+		int remainder = (int) Math.abs(cents % 100);
+
+		if (cents < 0 && dollars == 0)
+			put('-');
+		putLong(dollars);
+
+		ensure(3);
+		this.buffer.put((byte) '.');
+		this.buffer.put((byte) ('0' + remainder / 10));
+		this.buffer.put((byte) ('0' + remainder % 10));
+	}
+
+	/**
+	 * Writes text as UTF-8, passing each ASCII character through the escape first.
+	 * 
+	 * @param text   The text.
+	 * @param escape What each ASCII character is written as, by character, with
+	 *               null meaning the character itself.
+	 * 
+	 * @throws IOException if the channel cannot be written.
+	 */
+	protected void putText(String text, String[] escape) throws IOException {
+		ByteBuffer buffer = this.buffer;
+
+		for (int i = 0; i < text.length(); i++) {
+			if (buffer.remaining() < MAX_CHAR_BYTES)
+				flush();
+			char c = text.charAt(i);
+
+			if (c < 0x80) {
+				if (escape[c] == null)
+					buffer.put((byte) c);
+				else
+					for (int j = 0; j < escape[c].length(); j++)
+						buffer.put((byte) escape[c].charAt(j));
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				buffer.put((byte) (0xF0 | codePoint >> 18));
+				buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+				buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// A lone surrogate cannot be encoded, so it is written as '?', as
+				// String.getBytes would.
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xE0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An InvoiceIdGenerator issues unique, increasing invoice ID's.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Taking the next invoice ID, from any number of threads at once.
+ * 
+ * ID's are handed out from a block reserved in advance, so taking one is a
+ * single atomic increment with no lock. Only the thread that finds the block
+ * used up takes a lock, to reserve the next one.
+ * 
+ * Blocks are numbered, and node n of a group of nodes only ever reserves block
+ * numbers n, n + nodes, n + 2 * nodes and so on, so nodes never issue the same
+ * ID without needing to talk to each other. Processes of the same node share
+ * a state file holding the next block number to reserve. It is locked while a
+ * block is reserved, and written to disk before any ID from the block is
+ * issued, so a restart never reuses an ID. ID's left in a block when a
+ * process stops are skipped.
+ */
+
+public class InvoiceIdGenerator {
+
+	// Number of ID's reserved at a time unless another size is given.
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	private final Path stateFile;
+	private final int node, nodes, blockSize;
+
+	// The block ID's are currently taken from. Replaced, never changed, when it
+	// runs out.
+	private final AtomicReference<Block> currentBlock;
+
+	// Next block number to reserve when there is no state file, which belongs
+	// to this node like every block it reserves.
+	private long nextBlock;
+
+	// A reserved range of ID's: next up to, but not including, end.
+	private static final class Block {
+		final AtomicLong next;
+		final long end;
+
+		Block(long first, long end) {
+			this.next = new AtomicLong(first);
+			this.end = end;
+		}
+	}
+
+	// Constructor of InvoiceIdGenerator for a single node that keeps nothing on
+	// disk, so its ID's start again from 1 every time the program starts.
+	public InvoiceIdGenerator() {
+		this(null, 0, 1, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Constructs an InvoiceIdGenerator for one node of a group, which keeps the
+	 * last block it reserved in a state file.
+	 * 
+	 * @param stateFile The file holding the next block number, created if it does
+	 *                  not exist yet. Every process of the node must use the same
+	 *                  file. If null, nothing is kept on disk.
+	 * @param node      This node's number, from 0 up to nodes - 1.
+	 * @param nodes     The number of nodes issuing ID's.
+	 * @param blockSize The number of ID's reserved at a time.
+	 * 
+	 * @throws IllegalArgumentException if node is not below nodes, or a count is
+	 *                                  not positive.
+	 */
+	public InvoiceIdGenerator(Path stateFile, int node, int nodes, int blockSize) {
+		if (nodes < 1 || node < 0 || node >= nodes || blockSize < 1)
+			throw new IllegalArgumentException("Node " + node + " of " + nodes
+					+ " with blocks of " + blockSize + " is not a valid setting");
+
+		this.stateFile = stateFile;
+		this.node = node;
+		this.nodes = nodes;
+		this.blockSize = blockSize;
+		this.nextBlock = node;
+		this.currentBlock = new AtomicReference<>(new Block(0, 0));
+	}
+
+	/**
+	 * Returns the next invoice ID. ID's start at 1.
+	 * 
+	 * @return an ID never returned before by any generator of any node.
+	 * 
+	 * @throws UncheckedIOException if a new block cannot be reserved.
+	 */
+	public long nextId() {
+		while (true) {
+			Block block = this.currentBlock.get();
+			long id = block.next.getAndIncrement();
+
+			if (id < block.end)
+				return id;
+
+			refill(block);
+		}
+	}
+
+	// Replaces a used up block, unless another thread already has.
+	private synchronized void refill(Block usedBlock) {
+		if (this.currentBlock.get() != usedBlock)
+			return;
+
+		long block = reserveBlock();
+		long first = block * this.blockSize + 1;
+		this.currentBlock.set(new Block(first, first + this.blockSize));
+	}
+
+	// Reserves this node's next block number, recording the one after it.
+	private long reserveBlock() {
+		if (this.stateFile == null) {
+			long block = this.nextBlock;
+			this.nextBlock += this.nodes;
+			return block;
+		}
+
+		try (FileChannel channel = FileChannel.open(this.stateFile,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// Other nodes share the file, so it is locked until the next block is
+			// recorded.
+			FileLock lock = channel.lock();
+			try {
+				ByteBuffer state = ByteBuffer.allocate(Long.BYTES);
+				int read = 0;
+				while (read < Long.BYTES) {
+					int count = channel.read(state, read);
+					if (count < 0)
+						break;
+					read += count;
+				}
+
+				// Starting over from block 0 could reuse ID's, so a damaged file is
+				// an error rather than a fresh start.
+				if (read != 0 && read != Long.BYTES)
+					throw new IOException(this.stateFile + " is damaged");
+
+				long block = this.node;
+				if (read == Long.BYTES) {
+					block = state.getLong(0);
+
+					// A block of another node, or of an earlier grouping, is moved
+					// on to the next block that belongs to this node.
+					if (Math.floorMod(block, this.nodes) != this.node)
+						block += Math.floorMod(this.node - block, this.nodes);
+				}
+
+				state.clear();
+				state.putLong(0, block + this.nodes);
+				while (state.hasRemaining())
+					channel.write(state, state.position());
+				channel.force(false);
+
+				return block;
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not reserve invoice ID's in "
+					+ this.stateFile, e);
+		}
+	}
+}
@@ -0,0 +1,523 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An InvoiceIndex finds archived invoices by customer, product or date without
+ * scanning the whole InvoiceArchive.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Indexing each invoice as it is archived.
+ * 
+ * Finding every archived invoice for a customer name or phone number.
+ * 
+ * Finding every archived invoice that purchased a product.
+ * 
+ * Finding every archived invoice created between two times.
+ * 
+ * The index is four files in its own directory, each a list of 16 byte
+ * entries: a key and the position of an invoice in the archive. The name, phone
+ * and product files are keyed by a 64 bit hash of the name, phone number or
+ * product ID; the date file is keyed by the time the invoice was created.
+ * Entries are only ever appended, and the files are read into memory when the
+ * index is opened, so a query is a hash lookup or binary search followed by one
+ * read per invoice found.
+ * 
+ * Names are matched ignoring case and extra spaces, and phone numbers by their
+ * digits alone. Two keys may share a hash, so every invoice found is read back
+ * and checked before it is passed on.
+ * 
+ * Entries are written in batches, and the archive is synced before each batch,
+ * so no entry reaches disk before the invoice it points at. A crash can
+ * otherwise leave entries for positions the archive cuts back and reuses.
+ * The date file is always written last, so it never holds an invoice the other
+ * files are missing. When the index is opened, any invoices archived after the
+ * last one in the date file are indexed from the archive, so an index left
+ * behind by a crash, or deleted, catches up on its own.
+ */
+
+public class InvoiceIndex implements Closeable {
+
+	// Size of an entry: key, then position.
+	private static final int ENTRY_BYTES = 16;
+
+	// Entries buffered per file before they are written.
+	private static final int BUFFERED_ENTRIES = 256;
+
+	private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+
+	private final InvoiceArchive archive;
+
+	private final HashFile names;
+	private final HashFile phoneNumbers;
+	private final HashFile products;
+	private final DateFile dates;
+
+	// Position of the last invoice indexed, or -1 if none has been.
+	private long lastPosition = -1;
+
+	// Positions gathered by a query.
+	private long[] found = new long[64];
+
+	// An index file of entries, and the entries not yet written to it.
+	private static class IndexFile {
+		final FileChannel channel;
+		ByteBuffer pending = ByteBuffer.allocate(BUFFERED_ENTRIES * ENTRY_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		IndexFile(Path file) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			// An entry cut short by a crash is dropped.
+			long size = this.channel.size() / ENTRY_BYTES * ENTRY_BYTES;
+			this.channel.truncate(size);
+			this.channel.position(size);
+		}
+
+		// Reads every entry in the file, passing each key and position on.
+		void load(EntryVisitor visitor) throws IOException {
+			ByteBuffer entries = ByteBuffer.allocate(BUFFERED_ENTRIES * ENTRY_BYTES * 16)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			long offset = 0;
+			long size = this.channel.size();
+
+			while (offset < size) {
+				entries.clear();
+				if (size - offset < entries.capacity())
+					entries.limit((int) (size - offset));
+				while (entries.hasRemaining())
+					if (this.channel.read(entries, offset + entries.position()) < 0)
+						throw new IOException("An index file ended early");
+
+				for (int i = 0; i < entries.limit(); i += ENTRY_BYTES)
+					visitor.accept(entries.getLong(i), entries.getLong(i + Long.BYTES));
+				offset += entries.limit();
+			}
+		}
+
+		// Buffers an entry. The buffer grows rather than being written, since only
+		// writeAll knows the archive is synced.
+		void add(long key, long position) throws IOException {
+			if (!this.pending.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(this.pending.capacity() * 2)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				this.pending = larger.put(this.pending.flip());
+			}
+			this.pending.putLong(key).putLong(position);
+		}
+
+		// Whether a batch of entries is waiting to be written.
+		boolean full() {
+			return this.pending.position() >= BUFFERED_ENTRIES * ENTRY_BYTES;
+		}
+
+		void write() throws IOException {
+			this.pending.flip();
+			while (this.pending.hasRemaining())
+				this.channel.write(this.pending);
+			this.pending.clear();
+		}
+	}
+
+	private interface EntryVisitor {
+		void accept(long key, long position);
+	}
+
+	// An index file keyed by hash, held in memory as chains of entries sharing a
+	// bucket.
+	private static final class HashFile extends IndexFile {
+		long[] keys = new long[1024];
+		long[] positions = new long[1024];
+		int[] next = new int[1024];
+		int[] heads = newHeads(2048);
+		int size;
+
+		HashFile(Path file) throws IOException {
+			super(file);
+			load(this::put);
+		}
+
+		void put(long key, long position) {
+			if (this.size == this.keys.length) {
+				int capacity = this.size * 2;
+				this.keys = Arrays.copyOf(this.keys, capacity);
+				this.positions = Arrays.copyOf(this.positions, capacity);
+				this.next = Arrays.copyOf(this.next, capacity);
+
+				// Keeps the chains short by keeping twice as many buckets as entries.
+				this.heads = newHeads(capacity * 2);
+				for (int entry = 0; entry < this.size; entry++) {
+					int bucket = bucket(this.keys[entry]);
+					this.next[entry] = this.heads[bucket];
+					this.heads[bucket] = entry;
+				}
+			}
+
+			int entry = this.size++;
+			int bucket = bucket(key);
+			this.keys[entry] = key;
+			this.positions[entry] = position;
+			this.next[entry] = this.heads[bucket];
+			this.heads[bucket] = entry;
+		}
+
+		@Override
+		void add(long key, long position) throws IOException {
+			super.add(key, position);
+			put(key, position);
+		}
+
+		int bucket(long key) {
+			return (int) (key ^ key >>> 32) & (this.heads.length - 1);
+		}
+
+		static int[] newHeads(int buckets) {
+			int[] heads = new int[buckets];
+			Arrays.fill(heads, -1);
+			return heads;
+		}
+	}
+
+	// The date file, held in memory sorted by time.
+	private static final class DateFile extends IndexFile {
+		long[] millis = new long[1024];
+		long[] positions = new long[1024];
+		int size;
+		long lastPosition = -1;
+
+		DateFile(Path file) throws IOException {
+			super(file);
+			load(this::put);
+		}
+
+		void put(long createdMillis, long position) {
+			if (this.size == this.millis.length) {
+				this.millis = Arrays.copyOf(this.millis, this.size * 2);
+				this.positions = Arrays.copyOf(this.positions, this.size * 2);
+			}
+
+			// Invoices are nearly always archived in the order they were created, so
+			// an entry almost always goes on the end. One from another till whose
+			// clock is behind is moved back into place.
+			int entry = this.size++;
+			while (entry > 0 && this.millis[entry - 1] > createdMillis) {
+				this.millis[entry] = this.millis[entry - 1];
+				this.positions[entry] = this.positions[entry - 1];
+				entry--;
+			}
+			this.millis[entry] = createdMillis;
+			this.positions[entry] = position;
+			this.lastPosition = Math.max(this.lastPosition, position);
+		}
+
+		@Override
+		void add(long createdMillis, long position) throws IOException {
+			super.add(createdMillis, position);
+			put(createdMillis, position);
+		}
+
+		// Index of the first entry at or after the given time.
+		int first(long fromMillis) {
+			int low = 0, high = this.size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (this.millis[middle] < fromMillis)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Opens the index of an archive in a directory, creating it if it does not
+	 * exist yet, and indexes any invoices archived since it was last written.
+	 * 
+	 * @param directory The directory holding the index files.
+	 * @param archive   The archive the index is of.
+	 * 
+	 * @throws IOException if the index files or archive cannot be read.
+	 */
+	public InvoiceIndex(Path directory, InvoiceArchive archive) throws IOException {
+		this.archive = archive;
+		Files.createDirectories(directory);
+
+		this.names = new HashFile(directory.resolve("name.idx"));
+		this.phoneNumbers = new HashFile(directory.resolve("phone.idx"));
+		this.products = new HashFile(directory.resolve("product.idx"));
+		this.dates = new DateFile(directory.resolve("date.idx"));
+		this.lastPosition = this.dates.lastPosition;
+
+		// Entries the other files already hold are added again; queries drop the
+		// repeats.
+		long from = Math.max(this.lastPosition, 0);
+		IOException[] failure = new IOException[1];
+		archive.scan(from, (invoice, position) -> {
+			if (position > this.lastPosition && failure[0] == null) {
+				try {
+					add(invoice, position);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+		if (failure[0] != null)
+			throw failure[0];
+	}
+
+	/**
+	 * Indexes an invoice just appended to the archive. Entries are written in
+	 * batches, each after syncing the archive; call flush to write them at once.
+	 * 
+	 * @param invoice  The invoice.
+	 * @param position Its position in the archive, as returned by append.
+	 * 
+	 * @throws IOException if an index file cannot be written.
+	 */
+	public synchronized void add(InvoiceRecord invoice, long position) throws IOException {
+		if (invoice.getName() != null)
+			this.names.add(hash(normaliseName(invoice.getName())), position);
+		if (invoice.getPhoneNumber() != null)
+			this.phoneNumbers.add(hash(normalisePhoneNumber(invoice.getPhoneNumber())),
+					position);
+
+		int purchases = invoice.getPurchaseCount();
+		for (int purchase = 0; purchase < purchases; purchase++) {
+			String productID = invoice.getPurchaseID(purchase);
+
+			// A product bought on several lines is indexed once.
+			boolean repeated = false;
+			for (int earlier = 0; earlier < purchase && !repeated; earlier++)
+				repeated = productID.equals(invoice.getPurchaseID(earlier));
+			if (!repeated)
+				this.products.add(hash(productID), position);
+		}
+
+		this.dates.add(invoice.getCreatedMillis(), position);
+		this.lastPosition = Math.max(this.lastPosition, position);
+
+		if (this.names.full() || this.phoneNumbers.full() || this.products.full()
+				|| this.dates.full())
+			writeAll(false);
+	}
+
+	/**
+	 * Finds every archived invoice for a customer name, ignoring case and extra
+	 * spaces, oldest first. The invoice handed over is only valid until the
+	 * visitor returns.
+	 * 
+	 * @param name    The customer's name.
+	 * @param visitor Receives each invoice found.
+	 * 
+	 * @return the number of invoices found.
+	 * 
+	 * @throws IOException if the archive cannot be read.
+	 */
+	public synchronized int findByName(String name, Consumer<? super InvoiceRecord> visitor)
+			throws IOException {
+		String key = normaliseName(name);
+		return visit(gather(this.names, hash(key)), invoice -> invoice.getName() != null
+				&& normaliseName(invoice.getName()).equals(key), visitor);
+	}
+
+	/**
+	 * Finds every archived invoice for a customer phone number, matching its
+	 * digits alone, oldest first. The invoice handed over is only valid until the
+	 * visitor returns.
+	 * 
+	 * @param phoneNumber The customer's phone number.
+	 * @param visitor     Receives each invoice found.
+	 * 
+	 * @return the number of invoices found.
+	 * 
+	 * @throws IOException if the archive cannot be read.
+	 */
+	public synchronized int findByPhoneNumber(String phoneNumber,
+			Consumer<? super InvoiceRecord> visitor) throws IOException {
+		String key = normalisePhoneNumber(phoneNumber);
+		return visit(gather(this.phoneNumbers, hash(key)),
+				invoice -> invoice.getPhoneNumber() != null
+						&& normalisePhoneNumber(invoice.getPhoneNumber()).equals(key),
+				visitor);
+	}
+
+	/**
+	 * Finds every archived invoice that purchased a product, oldest first. The
+	 * invoice handed over is only valid until the visitor returns.
+	 * 
+	 * @param productID The product's ID.
+	 * @param visitor   Receives each invoice found.
+	 * 
+	 * @return the number of invoices found.
+	 * 
+	 * @throws IOException if the archive cannot be read.
+	 */
+	public synchronized int findByProduct(String productID,
+			Consumer<? super InvoiceRecord> visitor) throws IOException {
+		return visit(gather(this.products, hash(productID)), invoice -> {
+			for (int purchase = 0; purchase < invoice.getPurchaseCount(); purchase++)
+				if (productID.equals(invoice.getPurchaseID(purchase)))
+					return true;
+			return false;
+		}, visitor);
+	}
+
+	/**
+	 * Finds every archived invoice created from one time up to, but not
+	 * including, another, oldest first. The invoice handed over is only valid
+	 * until the visitor returns.
+	 * 
+	 * @param fromMillis The earliest time, in milliseconds since the epoch.
+	 * @param toMillis   The time to stop before.
+	 * @param visitor    Receives each invoice found.
+	 * 
+	 * @return the number of invoices found.
+	 * 
+	 * @throws IOException if the archive cannot be read.
+	 */
+	public synchronized int findByDate(long fromMillis, long toMillis,
+			Consumer<? super InvoiceRecord> visitor) throws IOException {
+		int count = 0;
+
+		for (int entry = this.dates.first(fromMillis); entry < this.dates.size
+				&& this.dates.millis[entry] < toMillis; entry++)
+			count = gathered(count, this.dates.positions[entry]);
+
+		return visit(count, invoice -> invoice.getCreatedMillis() >= fromMillis
+				&& invoice.getCreatedMillis() < toMillis, visitor);
+	}
+
+	/**
+	 * Syncs the archive, then writes every buffered entry to the index files and
+	 * waits until they are on disk.
+	 * 
+	 * @throws IOException if the archive or an index file cannot be written.
+	 */
+	public synchronized void flush() throws IOException {
+		writeAll(true);
+	}
+
+	// Writes every buffered entry, forces the index files to disk and closes them.
+	@Override
+	public synchronized void close() throws IOException {
+		writeAll(true);
+
+		this.names.channel.close();
+		this.phoneNumbers.channel.close();
+		this.products.channel.close();
+		this.dates.channel.close();
+	}
+
+	// Syncs the archive, then writes the buffered name, phone and product
+	// entries, and the date entries last. When forcing, each is forced as it is
+	// written, so the date file never holds an invoice the others are missing
+	// after a crash.
+	private void writeAll(boolean force) throws IOException {
+		this.archive.sync();
+
+		for (IndexFile file : new IndexFile[] { this.names, this.phoneNumbers,
+				this.products, this.dates }) {
+			file.write();
+			if (force)
+				file.channel.force(false);
+		}
+	}
+
+	// Gathers the positions of every entry with the given key.
+	private int gather(HashFile file, long key) {
+		int count = 0;
+
+		for (int entry = file.heads[file.bucket(key)]; entry >= 0; entry = file.next[entry])
+			if (file.keys[entry] == key)
+				count = gathered(count, file.positions[entry]);
+
+		return count;
+	}
+
+	private int gathered(int count, long position) {
+		if (count == this.found.length)
+			this.found = Arrays.copyOf(this.found, count * 2);
+		this.found[count] = position;
+		return count + 1;
+	}
+
+	private interface Check {
+		boolean matches(InvoiceRecord invoice);
+	}
+
+	// Reads each position gathered once, in archive order, and passes on the
+	// invoices that really match.
+	private int visit(int count, Check check, Consumer<? super InvoiceRecord> visitor)
+			throws IOException {
+		Arrays.sort(this.found, 0, count);
+		int[] matched = new int[1];
+
+		for (int i = 0; i < count; i++) {
+			if (i > 0 && this.found[i] == this.found[i - 1])
+				continue;
+
+			this.archive.read(this.found[i], invoice -> {
+				if (check.matches(invoice)) {
+					matched[0]++;
+					visitor.accept(invoice);
+				}
+			});
+		}
+		return matched[0];
+	}
+
+	// Lower cases a name and reduces every run of spaces within it to one space.
+	private static String normaliseName(String name) {
+		StringBuilder normalised = new StringBuilder(name.length());
+
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+
+			if (!Character.isWhitespace(c))
+				normalised.append(Character.toLowerCase(c));
+			else if (normalised.length() > 0
+					&& normalised.charAt(normalised.length() - 1) != ' ')
+				normalised.append(' ');
+		}
+
+		int end = normalised.length();
+		if (end > 0 && normalised.charAt(end - 1) == ' ')
+			normalised.setLength(end - 1);
+		return normalised.toString();
+	}
+
+	// Keeps only the digits of a phone number.
+	private static String normalisePhoneNumber(String phoneNumber) {
+		StringBuilder digits = new StringBuilder(phoneNumber.length());
+
+		for (int i = 0; i < phoneNumber.length(); i++)
+			if (Character.isDigit(phoneNumber.charAt(i)))
+				digits.append(phoneNumber.charAt(i));
+
+		return digits.toString();
+	}
+
+	// 64 bit FNV-1a hash of a key's characters.
+	private static long hash(String key) {
+		long hash = FNV_OFFSET_BASIS;
+
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
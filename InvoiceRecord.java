@@ -0,0 +1,56 @@
+/**
+ * An InvoiceRecord is the data of one invoice, however it is held.
+ * 
+ * This interface allows a Sales System user to read an invoice in the
+ * following ways, whether it is an Invoice2 being built or an invoice read back
+ * from an InvoiceArchive:
+ * 
+ * Retrieving the invoice ID, and when the invoice was created.
+ * 
+ * Retrieving the customer's details and where the order is delivered.
+ * 
+ * Retrieving each purchase, numbered from 0.
+ * 
+ * Retrieving the totals.
+ * 
+ * All amounts of money are in cents.
+ */
+
+public interface InvoiceRecord {
+
+	long getInvoiceID();
+
+	// Milliseconds since the epoch, and as printed on the invoice.
+	long getCreatedMillis();
+
+	String getDateTime();
+
+	String getName();
+
+	String getAddress();
+
+	String getCountry();
+
+	String getPhoneNumber();
+
+	// "city - country", or empty when the order is picked up in-store.
+	String getDeliveryInformation();
+
+	int getPurchaseCount();
+
+	String getPurchaseID(int purchase);
+
+	String getPurchaseDescription(int purchase);
+
+	long getPurchasePriceCents(int purchase);
+
+	int getPurchaseQuantity(int purchase);
+
+	long getItemTotalCents();
+
+	long getDeliveryCents();
+
+	long getInsuranceCents();
+
+	long getGrandTotalCents();
+}
@@ -0,0 +1,133 @@
+/**
+ * An InvoiceRenderer lays out an invoice as text, in the layout
+ * Invoice2.displayInvoice prints.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Rendering a whole invoice.
+ * 
+ * Rendering the header, or a single purchase, of an invoice's item table.
+ * 
+ * Everything is written into one buffer that is cleared and reused for each
+ * call. Padding is copied from preset runs of spaces and dashes, and amounts
+ * are written digit by digit from their cents rather than through
+ * String.format. Once the
+ * buffer has grown to fit the largest invoice, rendering allocates nothing.
+ * 
+ * What a call returns is only valid until the next call, and a renderer must
+ * not be shared between threads. Rendering a whole invoice is timed while
+ * SalesMetrics are enabled.
+ */
+
+public class InvoiceRenderer {
+
+	// Runs of padding characters, copied from in pieces of up to their length.
+	private static final String SPACES = " ".repeat(64);
+	private static final String DASHES = "-".repeat(64);
+
+	private final StringBuilder buffer = new StringBuilder(4096);
+
+	// Renders the whole invoice, exactly as displayInvoice prints it.
+	public CharSequence render(Invoice2 invoice) {
+		long start = SalesMetrics.start();
+		StringBuilder buffer = this.buffer;
+		buffer.setLength(0);
+
+		buffer.append("\n\n");
+		appendRight("Invoice ID:", 18);
+		buffer.append(' ').append(invoice.getInvoiceID()).append(" \n  ");
+		appendRight(invoice.getCompany(), 20);
+		buffer.append(" \n \nDate and Time: ").append(invoice.getDateTime());
+		buffer.append("\nCustomer Name: ").append(invoice.getName());
+		buffer.append("\nCustomer Address: ").append(invoice.getAddress());
+		buffer.append("\nCustomer Country: ").append(invoice.getCountry());
+		buffer.append("\nCustomer Phone Number: ").append(invoice.getPhoneNumber())
+				.append("\n\n");
+
+		// The item table, with a blank line after each purchase.
+		int headerStart = buffer.length();
+		appendHeader(invoice);
+		int headerLength = buffer.length() - headerStart;
+		buffer.append('\n');
+		appendRepeated(DASHES, headerLength);
+		buffer.append('\n');
+
+		for (int index = 0; index < invoice.getPurchaseCount(); index++) {
+			appendPurchase(invoice, index);
+			buffer.append('\n');
+		}
+
+		buffer.append("\nTotal Cost of Items: $");
+		Money.append(buffer, invoice.getItemTotalCents());
+		buffer.append(" \nDelivery Cost:       $");
+		Money.append(buffer, invoice.getDeliveryCents());
+		buffer.append(" \nInsurance Cost:      $");
+		Money.append(buffer, invoice.getInsuranceCents());
+		buffer.append(" \nGrand Total Cost:    $");
+		Money.append(buffer, invoice.getGrandTotalCents());
+		buffer.append(" \n");
+
+		String deliveryInformation = invoice.getDeliveryInformation();
+		if (deliveryInformation != null && !deliveryInformation.isEmpty())
+			buffer.append("\nDelivery Location: ").append(deliveryInformation).append("\n\n");
+		else
+			buffer.append("\nPick up in-store \n\n");
+
+		buffer.append("Thankyou for shopping at Toy Universe! \n\n\n");
+		SalesMetrics.record(SalesMetrics.Stage.RENDER_INVOICE, start);
+		return buffer;
+	}
+
+	// Renders the column titles of the item table.
+	public CharSequence renderHeader(Invoice2 invoice) {
+		this.buffer.setLength(0);
+		appendHeader(invoice);
+		return this.buffer;
+	}
+
+	// Renders one purchase of the item table, numbered from 0.
+	public CharSequence renderPurchase(Invoice2 invoice, int purchase) {
+		this.buffer.setLength(0);
+		appendPurchase(invoice, purchase);
+		return this.buffer;
+	}
+
+	private void appendHeader(Invoice2 invoice) {
+		this.buffer.append("Item No      ID   ");
+		appendLeft("Description", invoice.getMaxDescriptionLength());
+		this.buffer.append("   Price   Quantity");
+	}
+
+	private void appendPurchase(Invoice2 invoice, int purchase) {
+		StringBuilder buffer = this.buffer;
+
+		buffer.append("Item No. ").append(purchase + 1).append(" | ")
+				.append(invoice.getPurchaseID(purchase)).append(" | ");
+		appendLeft(invoice.getPurchaseDescription(purchase),
+				invoice.getMaxDescriptionLength());
+		buffer.append(" | ");
+		Money.append(buffer, invoice.getPurchasePriceCents(purchase));
+		buffer.append(" | ").append(invoice.getPurchaseQuantity(purchase)).append(" \n");
+	}
+
+	// Appends text followed by spaces up to the given width.
+	private void appendLeft(String text, int width) {
+		this.buffer.append(text);
+		appendRepeated(SPACES, width - text.length());
+	}
+
+	// Appends spaces up to the given width followed by text.
+	private void appendRight(String text, int width) {
+		appendRepeated(SPACES, width - text.length());
+		this.buffer.append(text);
+	}
+
+	private void appendRepeated(String run, int count) {
+		while (count > 0) {
+			int piece = Math.min(count, run.length());
+			this.buffer.append(run, 0, piece);
+			count -= piece;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A JsonInvoiceExporter writes invoices as JSON lines, one object per invoice.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Exporting invoices through the InvoiceExporter methods.
+ * 
+ * Each line is an object holding the invoice's details, its purchases as an
+ * array and its totals. Amounts are numbers in dollars with two decimal places,
+ * written exactly from their cents. A detail that was never given is null.
+ */
+
+public class JsonInvoiceExporter extends InvoiceExporter {
+
+	// Quotes, backslashes and control characters are escaped.
+	private static final String[] ESCAPE = new String[128];
+	static {
+		for (int c = 0; c < 0x20; c++)
+			ESCAPE[c] = String.format("\\u%04x", c);
+		ESCAPE['\b'] = "\\b";
+		ESCAPE['\t'] = "\\t";
+		ESCAPE['\n'] = "\\n";
+		ESCAPE['\f'] = "\\f";
+		ESCAPE['\r'] = "\\r";
+		ESCAPE['"'] = "\\\"";
+		ESCAPE['\\'] = "\\\\";
+		ESCAPE[0x7F] = "\\u007f";
+	}
+
+	// Constructor of JsonInvoiceExporter writing to the given channel.
+	public JsonInvoiceExporter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	// Constructor of JsonInvoiceExporter writing through a heap buffer of the
+	// given size.
+	public JsonInvoiceExporter(WritableByteChannel channel, int bufferBytes) {
+		super(channel, bufferBytes);
+	}
+
+	@Override
+	public void export(InvoiceRecord invoice) throws IOException {
+		putAscii("{\"invoiceID\":");
+		putLong(invoice.getInvoiceID());
+		putAscii(",\"createdMillis\":");
+		putLong(invoice.getCreatedMillis());
+		putAscii(",\"dateTime\":");
+		putString(invoice.getDateTime());
+		putAscii(",\"name\":");
+		putString(invoice.getName());
+		putAscii(",\"address\":");
+		putString(invoice.getAddress());
+		putAscii(",\"country\":");
+		putString(invoice.getCountry());
+		putAscii(",\"phoneNumber\":");
+		putString(invoice.getPhoneNumber());
+		putAscii(",\"deliveryInformation\":");
+		putString(invoice.getDeliveryInformation());
+
+		putAscii(",\"purchases\":[");
+		int purchases = invoice.getPurchaseCount();
+		for (int purchase = 0; purchase < purchases; purchase++) {
+			long priceCents = invoice.getPurchasePriceCents(purchase);
+			int quantity = invoice.getPurchaseQuantity(purchase);
+
+			putAscii(purchase == 0 ? "{\"productID\":" : ",{\"productID\":");
+			putString(invoice.getPurchaseID(purchase));
+			putAscii(",\"description\":");
+			putString(invoice.getPurchaseDescription(purchase));
+			putAscii(",\"quantity\":");
+			putLong(quantity);
+			putAscii(",\"price\":");
+			putCents(priceCents);
+			putAscii(",\"lineTotal\":");
+			putCents(Money.multiply(priceCents, quantity));
+			put('}');
+		}
+
+		putAscii("],\"itemTotal\":");
+		putCents(invoice.getItemTotalCents());
+		putAscii(",\"delivery\":");
+		putCents(invoice.getDeliveryCents());
+		putAscii(",\"insurance\":");
+		putCents(invoice.getInsuranceCents());
+		putAscii(",\"grandTotal\":");
+		putCents(invoice.getGrandTotalCents());
+		putAscii("}\n");
+	}
+
+	// Writes a JSON string, or null.
+	private void putString(String text) throws IOException {
+		if (text == null) {
+			putAscii("null");
+			return;
+		}
+
+		put('"');
+		putText(text, ESCAPE);
+		put('"');
+	}
+}
@@ -0,0 +1,63 @@
+import java.util.Formatter;
+
+/**
+ * A MemoryOutputSink keeps everything written to it, for batch runs and tests
+ * to read back.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Printing through the OutputSink methods.
+ * 
+ * Retrieving everything flushed so far, and how many times it was flushed.
+ * 
+ * Clearing what has been kept.
+ * 
+ * Only flushed output is kept, just as only flushed output reaches the console,
+ * so a test sees exactly what a user would have seen and in how many writes.
+ */
+
+public class MemoryOutputSink implements OutputSink {
+
+	private final StringBuilder buffer = new StringBuilder();
+	private final Formatter formatter = new Formatter(this.buffer);
+	private final StringBuilder flushed = new StringBuilder();
+	private int flushCount;
+
+	@Override
+	public void print(CharSequence text) {
+		this.buffer.append(text);
+	}
+
+	@Override
+	public void printf(String format, Object... arguments) {
+		this.formatter.format(format, arguments);
+	}
+
+	@Override
+	public void flush() {
+		if (this.buffer.length() == 0)
+			return;
+
+		this.flushed.append(this.buffer);
+		this.buffer.setLength(0);
+		this.flushCount++;
+	}
+
+	// Accessor for everything flushed so far.
+	public String getText() {
+		return this.flushed.toString();
+	}
+
+	// Accessor for the number of flushes that wrote something.
+	public int getFlushCount() {
+		return this.flushCount;
+	}
+
+	// Forgets everything kept so far, flushed or not.
+	public void clear() {
+		this.buffer.setLength(0);
+		this.flushed.setLength(0);
+		this.flushCount = 0;
+	}
+}
@@ -0,0 +1,121 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Money holds the arithmetic for amounts of money kept as a whole number of
+ * cents in a long.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Converting an amount in dollars, or written in dollars, to cents, and back.
+ * 
+ * Multiplying a price by a quantity, and adding amounts, exactly.
+ * 
+ * Totalling a basket of prices and quantities.
+ * 
+ * Writing an amount as dollars to two decimal places.
+ * 
+ * Amounts in dollars are rounded to the nearest cent by their decimal value,
+ * with halves rounded away from zero, so 1.005 becomes 1.01 as it reads rather
+ * than 1.00 as the nearest double would give. Arithmetic on cents is exact, and
+ * throws ArithmeticException rather than overflowing.
+ */
+
+public final class Money {
+
+	private Money() {
+	}
+
+	// Converts an amount in dollars to cents, rounding half away from zero.
+	public static long toCents(double dollars) {
+		if (Double.isNaN(dollars) || Double.isInfinite(dollars))
+			throw new IllegalArgumentException("Not an amount of money: " + dollars);
+
+		// BigDecimal.valueOf reads the double as it would be printed, so the
+		// rounding follows the written amount rather than its binary value.
+		return BigDecimal.valueOf(dollars).setScale(2, RoundingMode.HALF_UP)
+				.unscaledValue().longValueExact();
+	}
+
+	// Reads an amount written in dollars, such as "9.95", as cents, rounding half
+	// away from zero past the second decimal place.
+	public static long parse(String dollars) {
+		return new BigDecimal(dollars.trim()).setScale(2, RoundingMode.HALF_UP)
+				.unscaledValue().longValueExact();
+	}
+
+	// Converts every amount in dollars to cents.
+	public static long[] toCents(double[] dollars) {
+		long[] cents = new long[dollars.length];
+
+		for (int i = 0; i < dollars.length; i++)
+			cents[i] = toCents(dollars[i]);
+
+		return cents;
+	}
+
+	// Converts an amount in cents to dollars.
+	public static double toDollars(long cents) {
+		return cents / 100.0;
+	}
+
+	// Cost of a quantity of an item at the given price.
+	public static long multiply(long priceCents, int quantity) {
+		return Math.multiplyExact(priceCents, quantity);
+	}
+
+	// Sum of two amounts.
+	public static long add(long cents, long moreCents) {
+		return Math.addExact(cents, moreCents);
+	}
+
+	// Total cost of the first count lines of a basket, each a price in cents times
+	// a quantity. The lines are summed without a check on each one, which is
+	// faster than summing doubles. One check afterwards proves nothing can have
+	// overflowed, and only a basket that fails it is summed again exactly.
+	public static long total(long[] priceCents, int[] quantities, int count) {
+		long total = 0, prices = 0, lines = 0;
+
+		for (int i = 0; i < count; i++) {
+			long price = priceCents[i];
+			long line = price * quantities[i];
+
+			prices |= price;
+			lines |= line;
+			total += line;
+		}
+
+		// A price below 2^31 times an int quantity cannot overflow, and count
+		// non-negative lines below 2^k add up to less than count * 2^k.
+		if ((prices >>> 31) == 0 && lines >= 0 && 64 - Long.numberOfLeadingZeros(lines)
+				+ 32 - Integer.numberOfLeadingZeros(count) <= 63)
+			return total;
+
+		total = 0;
+		for (int i = 0; i < count; i++)
+			total = add(total, multiply(priceCents[i], quantities[i]));
+
+		return total;
+	}
+
+	// Appends an amount as dollars to two decimal places, without a currency sign.
+	public static StringBuilder append(StringBuilder buffer, long cents) {
+		long dollars = cents / 100;
+		int fraction = (int) (cents % 100);
+
+		if (cents < 0) {
+			buffer.append('-');
+			dollars = -dollars;
+			fraction = -fraction;
+		}
+
+		return buffer.append(dollars).append('.').append((char) ('0' + fraction / 10))
+				.append((char) ('0' + fraction % 10));
+	}
+
+	// Formats an amount as dollars to two decimal places, without a currency sign.
+	public static String format(long cents) {
+		return append(new StringBuilder(24), cents).toString();
+	}
+}
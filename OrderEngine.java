@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An OrderEngine takes customers' orders from start to finish without a
+ * console.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Starting a new invoice for a customer.
+ * 
+ * Adding a purchase, or a whole basket of them, to an invoice, which removes
+ * the stock and reorders it in the background if it runs low.
+ * 
+ * Adding delivery and insurance to an invoice.
+ * 
+ * Finalising an invoice, which archives and indexes it, either waiting for it
+ * to reach disk or leaving a batch to sync once at the end.
+ * 
+ * Cancelling an invoice, which puts its stock back.
+ * 
+ * Each command names the invoice it is for by ID and returns an OrderResult
+ * rather than printing or asking anything, so SalesSystem2 is only one client
+ * of the engine, and batch jobs or other programs can drive orders directly.
+ * 
+ * Any number of invoices may be open at once, and commands for different
+ * invoices may run on different threads. Commands for the same invoice are
+ * carried out one at a time.
+ * 
+ * While SalesMetrics are enabled, adding a purchase and finalising an order
+ * are timed, and so are the archiving and indexing finalising is made of.
+ */
+
+public class OrderEngine implements AutoCloseable {
+
+	private final Inventory inventory;
+	private final ReplenishmentEngine replenishment;
+	private final InvoiceArchive archive;
+	private final InvoiceIndex index;
+
+	// Invoices started and not yet finalised or cancelled, by ID.
+	private final Map<Long, Invoice2> openInvoices = new ConcurrentHashMap<>();
+
+	// Constructor of OrderEngine over an inventory, with nothing archived.
+	public OrderEngine(Inventory inventory) {
+		this(inventory, null, null);
+	}
+
+	// Constructor of OrderEngine that archives every finalised invoice, and
+	// indexes it, unless null is passed for either. Low stock is reordered with
+	// the ReplenishmentEngine defaults.
+	public OrderEngine(Inventory inventory, InvoiceArchive archive, InvoiceIndex index) {
+		this.inventory = inventory;
+		this.replenishment = new ReplenishmentEngine(inventory);
+		this.archive = archive;
+		this.index = index;
+	}
+
+	// Accessor for the inventory orders are taken from.
+	public Inventory getInventory() {
+		return this.inventory;
+	}
+
+	// Starts a new invoice for a customer and returns its ID.
+	public long newInvoice(String name, String address, String country,
+			String phoneNumber) {
+		Invoice2 invoice = new Invoice2(name, address, country, phoneNumber);
+		this.openInvoices.put(invoice.getInvoiceID(), invoice);
+		return invoice.getInvoiceID();
+	}
+
+	// Accessor for an open invoice, or null if none has the ID. The invoice must
+	// not be changed other than through the engine.
+	public Invoice2 getInvoice(long invoiceID) {
+		return this.openInvoices.get(invoiceID);
+	}
+
+	/**
+	 * Adds a purchase to an open invoice, removing the stock from the inventory.
+	 * If the product is left low, a reorder is scheduled in the background.
+	 * 
+	 * @param invoiceID The ID of the invoice.
+	 * @param productID The ID of the product purchased.
+	 * @param quantity  The quantity purchased. Must be > 0.
+	 * 
+	 * @return the result, holding the stock level left if the purchase was
+	 *         accepted.
+	 */
+	public OrderResult addPurchase(long invoiceID, String productID, int quantity) {
+		long start = SalesMetrics.start();
+		try {
+			return purchase(invoiceID, productID, quantity);
+		} finally {
+			SalesMetrics.record(SalesMetrics.Stage.ADD_PURCHASE, start);
+		}
+	}
+
+	// Adds a purchase as addPurchase does, untimed.
+	private OrderResult purchase(long invoiceID, String productID, int quantity) {
+		Invoice2 invoice = this.openInvoices.get(invoiceID);
+
+		if (invoice == null)
+			return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+		synchronized (invoice) {
+			if (!isOpen(invoiceID, invoice))
+				return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+			int stockLevel = this.inventory.removeStock(productID, quantity);
+
+			if (stockLevel < 0)
+				return OrderResult.of(rejection(stockLevel), invoiceID);
+
+			boolean reorderScheduled = reorder(productID, stockLevel);
+
+			// Description and price in one lookup.
+			ProductSnapshot product = this.inventory.getProduct(productID);
+			invoice.purchaseRecordCents(productID, quantity, product.getDescription(),
+					product.getPriceCents());
+
+			return new OrderResult(OrderResult.Status.ACCEPTED, invoiceID, stockLevel,
+					reorderScheduled, null, null);
+		}
+	}
+
+	/**
+	 * Adds a whole basket of purchases to an open invoice, or none of them. The
+	 * stock for every line is reserved in one pass with Inventory.reserveStock,
+	 * so a basket of dozens of lines waits for the stock journal only once.
+	 * 
+	 * @param invoiceID  The ID of the invoice.
+	 * @param productIDs The ID of the product on each line.
+	 * @param quantities The quantity on each line. Each must be > 0.
+	 * 
+	 * @return the result, which is accepted if every line was added. Otherwise it
+	 *         holds why the first rejected line was rejected, and nothing was
+	 *         added.
+	 * 
+	 * @throws IllegalArgumentException if the arrays differ in length.
+	 */
+	public OrderResult addPurchases(long invoiceID, String[] productIDs, int[] quantities) {
+		long start = SalesMetrics.start();
+		try {
+			return purchaseAll(invoiceID, productIDs, quantities);
+		} finally {
+			SalesMetrics.record(SalesMetrics.Stage.ADD_PURCHASE, start);
+		}
+	}
+
+	// Adds a basket as addPurchases does, untimed.
+	private OrderResult purchaseAll(long invoiceID, String[] productIDs, int[] quantities) {
+		Invoice2 invoice = this.openInvoices.get(invoiceID);
+
+		if (invoice == null)
+			return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+		synchronized (invoice) {
+			if (!isOpen(invoiceID, invoice))
+				return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+			int[] stockLevels = this.inventory.reserveStock(productIDs, quantities);
+
+			for (int stockLevel : stockLevels)
+				if (stockLevel < 0 && stockLevel != Inventory.NOT_RESERVED)
+					return OrderResult.of(rejection(stockLevel), invoiceID);
+
+			boolean reorderScheduled = false;
+			for (int line = 0; line < productIDs.length; line++) {
+				reorderScheduled |= reorder(productIDs[line], stockLevels[line]);
+
+				ProductSnapshot product = this.inventory.getProduct(productIDs[line]);
+				invoice.purchaseRecordCents(productIDs[line], quantities[line],
+						product.getDescription(), product.getPriceCents());
+			}
+
+			return new OrderResult(OrderResult.Status.ACCEPTED, invoiceID, -1,
+					reorderScheduled, null, null);
+		}
+	}
+
+	// The status a purchase rejected by Inventory with -1, -2 or -3 gets.
+	private static OrderResult.Status rejection(int stockLevel) {
+		if (stockLevel == -1)
+			return OrderResult.Status.INVALID_PRODUCT;
+		else if (stockLevel == -2)
+			return OrderResult.Status.INVALID_QUANTITY;
+		else
+			return OrderResult.Status.OUT_OF_STOCK;
+	}
+
+	// Reports a product's stock level, so it is reordered in the background if it
+	// is low. Returns true if a reorder is scheduled. Never waits.
+	public boolean reorder(String productID, int stockLevel) {
+		return this.replenishment.stockChanged(productID, stockLevel);
+	}
+
+	// Adds delivery to a city and country to an open invoice. If the country is
+	// not delivered to, the invoice is left for pick up.
+	public OrderResult addDelivery(long invoiceID, String city, String country) {
+		Invoice2 invoice = this.openInvoices.get(invoiceID);
+
+		if (invoice == null)
+			return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+		synchronized (invoice) {
+			if (!isOpen(invoiceID, invoice))
+				return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+			return OrderResult.of(invoice.deliverTo(city, country)
+					? OrderResult.Status.ACCEPTED
+					: OrderResult.Status.NOT_DELIVERED, invoiceID);
+		}
+	}
+
+	// Adds insurance to an open invoice.
+	public OrderResult addInsurance(long invoiceID) {
+		Invoice2 invoice = this.openInvoices.get(invoiceID);
+
+		if (invoice == null)
+			return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+		synchronized (invoice) {
+			if (!isOpen(invoiceID, invoice))
+				return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+			invoice.addInsurance();
+		}
+		return OrderResult.of(OrderResult.Status.ACCEPTED, invoiceID);
+	}
+
+	// Whether an invoice looked up before its lock was taken is still open.
+	// Finalising and cancelling remove the invoice before taking its lock, so a
+	// command holding the lock either sees it removed and changes nothing, or
+	// finishes before the invoice is archived or its stock put back.
+	private boolean isOpen(long invoiceID, Invoice2 invoice) {
+		return this.openInvoices.get(invoiceID) == invoice;
+	}
+
+	/**
+	 * Finalises an open invoice, which closes it to further commands, and waits
+	 * until it is archived and indexed.
+	 * 
+	 * @param invoiceID The ID of the invoice.
+	 * 
+	 * @return the result, holding the finalised invoice. If the invoice could not
+	 *         be archived it is still finalised, and the result holds why.
+	 */
+	public OrderResult finalise(long invoiceID) {
+		return finalise(invoiceID, true);
+	}
+
+	/**
+	 * Finalises an open invoice, which closes it to further commands, and
+	 * archives and indexes it.
+	 * 
+	 * @param invoiceID The ID of the invoice.
+	 * @param sync      Whether to wait until the invoice is on disk. Batches may
+	 *                  pass false and call sync once at the end.
+	 * 
+	 * @return the result, holding the finalised invoice. If the invoice could not
+	 *         be archived it is still finalised, and the result holds why.
+	 */
+	public OrderResult finalise(long invoiceID, boolean sync) {
+		long start = SalesMetrics.start();
+		try {
+			return finaliseInvoice(invoiceID, sync);
+		} finally {
+			SalesMetrics.record(SalesMetrics.Stage.FINALISE_ORDER, start);
+		}
+	}
+
+	// Finalises an invoice as finalise does, untimed.
+	private OrderResult finaliseInvoice(long invoiceID, boolean sync) {
+		Invoice2 invoice = this.openInvoices.remove(invoiceID);
+
+		if (invoice == null)
+			return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+		synchronized (invoice) {
+			if (this.archive != null) {
+				try {
+					long stageStart = SalesMetrics.start();
+					long position = this.archive.append(invoice);
+					if (sync)
+						this.archive.sync();
+					SalesMetrics.record(SalesMetrics.Stage.ARCHIVE_INVOICE, stageStart);
+
+					if (this.index != null) {
+						stageStart = SalesMetrics.start();
+						this.index.add(invoice, position);
+						SalesMetrics.record(SalesMetrics.Stage.INDEX_INVOICE, stageStart);
+					}
+				} catch (IOException e) {
+					return new OrderResult(OrderResult.Status.NOT_ARCHIVED, invoiceID, -1,
+							false, invoice, e);
+				} catch (IllegalArgumentException e) {
+					// A string too long for the archive.
+					return new OrderResult(OrderResult.Status.NOT_ARCHIVED, invoiceID, -1,
+							false, invoice, new IOException(e.getMessage(), e));
+				}
+			}
+			return new OrderResult(OrderResult.Status.ACCEPTED, invoiceID, -1, false,
+					invoice, null);
+		}
+	}
+
+	// Cancels an open invoice, putting the stock of every purchase on it back.
+	public OrderResult cancel(long invoiceID) {
+		Invoice2 invoice = this.openInvoices.remove(invoiceID);
+
+		if (invoice == null)
+			return OrderResult.of(OrderResult.Status.NO_SUCH_INVOICE, invoiceID);
+
+		synchronized (invoice) {
+			for (int purchase = 0; purchase < invoice.getPurchaseCount(); purchase++)
+				this.inventory.orderStock(invoice.getPurchaseID(purchase),
+						invoice.getPurchaseQuantity(purchase));
+		}
+		return OrderResult.of(OrderResult.Status.ACCEPTED, invoiceID);
+	}
+
+	/**
+	 * Waits until every invoice finalised so far is archived on disk, and then
+	 * until their index entries are too.
+	 * 
+	 * @throws IOException if the archive or index cannot be written.
+	 */
+	public void sync() throws IOException {
+		if (this.archive != null)
+			this.archive.sync();
+		if (this.index != null)
+			this.index.flush();
+	}
+
+	// Accessor for the number of invoices open.
+	public int getOpenInvoiceCount() {
+		return this.openInvoices.size();
+	}
+
+	// Stops reordering in the background. The archive and index are left open
+	// for their owner to close.
+	@Override
+	public void close() {
+		this.replenishment.close();
+	}
+}
@@ -0,0 +1,292 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * An OrderReplay runs a file of orders through an OrderEngine without
+ * prompting, such as the orders an offline till took during the day.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Replaying an orders file, end to end, as fast as the engine allows.
+ * 
+ * Retrieving how many orders, invoices and lines were replayed and rejected,
+ * and why.
+ * 
+ * Retrieving the time each order took, as percentiles.
+ * 
+ * Printing a summary of all of the above.
+ * 
+ * An orders file is a UTF-8 text file with one order per line, fields
+ * separated by '|'. Blank lines and lines starting with '#' are ignored.
+ * 
+ * name|address|country|phone|P1:2,P3:1|delivery country|delivery city|Y or N
+ * 
+ * The fifth field lists each product ID and quantity purchased. The delivery
+ * fields are left empty for an order picked up in-store, and the last field
+ * says whether the order is insured.
+ * 
+ * The lines of an order are reserved from the inventory together, in one pass.
+ * If any is rejected, they are taken one at a time instead, as if entered at
+ * the console, so a rejected line leaves the rest of the order to go ahead. An
+ * order with no line accepted is cancelled rather than invoiced. Finalised
+ * invoices are archived without waiting for each to reach disk, and the
+ * archive is synced once the whole file has been replayed. An invoice the
+ * archive refuses is still finalised, and is counted as not archived.
+ */
+
+public class OrderReplay {
+
+	// Percentiles the summary reports.
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	private final OrderEngine engine;
+
+	// Where each finalised invoice is displayed, or null.
+	private final OutputSink invoicesOut;
+
+	// Where malformed lines are reported, or null.
+	private final OutputSink errorsOut;
+
+	private long orders, invoices, ordersRejected, linesAccepted, malformedLines;
+	private long elapsedNanos;
+	private final Map<OrderResult.Status, Long> rejects = new EnumMap<>(
+			OrderResult.Status.class);
+
+	// Time each order took, in nanoseconds.
+	private long[] latencies = new long[1024];
+	private boolean latenciesSorted;
+
+	// Constructor of OrderReplay. Finalised invoices are displayed through
+	// invoicesOut, and malformed lines reported through errorsOut, unless null is
+	// passed for either.
+	public OrderReplay(OrderEngine engine, OutputSink invoicesOut, OutputSink errorsOut) {
+		this.engine = engine;
+		this.invoicesOut = invoicesOut;
+		this.errorsOut = errorsOut;
+	}
+
+	/**
+	 * Replays every order in a file, then syncs the archive.
+	 * 
+	 * @param ordersFile The orders file.
+	 * 
+	 * @return the number of orders replayed.
+	 * 
+	 * @throws IOException if the file cannot be read, or the archive or index
+	 *                     cannot be written.
+	 */
+	public long replay(Path ordersFile) throws IOException {
+		long start = System.nanoTime();
+		long replayed = 0;
+
+		try (BufferedReader reader = Files.newBufferedReader(ordersFile,
+				StandardCharsets.UTF_8)) {
+			int lineNumber = 0;
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				try {
+					replay(line);
+					replayed++;
+				} catch (IllegalArgumentException e) {
+					this.malformedLines++;
+					if (this.errorsOut != null)
+						this.errorsOut.println("Line " + lineNumber + " of " + ordersFile
+								+ " is malformed: " + e.getMessage());
+				}
+			}
+		}
+
+		this.engine.sync();
+		this.elapsedNanos += System.nanoTime() - start;
+		return replayed;
+	}
+
+	/**
+	 * Replays a single order, written as a line of an orders file.
+	 * 
+	 * @param order The order.
+	 * 
+	 * @return the result of finalising the order, or of cancelling it if no line
+	 *         was accepted.
+	 * 
+	 * @throws IllegalArgumentException if the order is malformed. The whole
+	 *                                  line is checked before the engine is
+	 *                                  called, so nothing is replayed.
+	 */
+	public OrderResult replay(String order) {
+		String[] fields = order.split("\\|", -1);
+		if (fields.length != 8)
+			throw new IllegalArgumentException("Expected 8 fields but found "
+					+ fields.length);
+
+		// Every line is parsed before any stock is taken.
+		String[] lines = fields[4].isBlank() ? new String[0] : fields[4].split(",");
+		String[] productIDs = new String[lines.length];
+		int[] quantities = new int[lines.length];
+		for (int line = 0; line < lines.length; line++) {
+			int colon = lines[line].indexOf(':');
+			if (colon < 0)
+				throw new IllegalArgumentException("No quantity for " + lines[line].trim());
+
+			productIDs[line] = lines[line].substring(0, colon).trim().toUpperCase();
+			try {
+				quantities[line] = Integer.parseInt(lines[line].substring(colon + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad quantity for " + productIDs[line]);
+			}
+		}
+
+		String insured = fields[7].trim();
+		if (!insured.equalsIgnoreCase("Y") && !insured.equalsIgnoreCase("N"))
+			throw new IllegalArgumentException("Insurance must be Y or N");
+
+		// The customer's details and the delivery city are printed on the
+		// invoice, so each must fit in the archive.
+		for (int field : new int[] { 0, 1, 2, 3, 5, 6 })
+			if (fields[field].trim().getBytes(StandardCharsets.UTF_8)
+					.length > InvoiceArchive.MAX_STRING_BYTES)
+				throw new IllegalArgumentException("Field " + (field + 1)
+						+ " is longer than " + InvoiceArchive.MAX_STRING_BYTES + " bytes");
+
+		long start = System.nanoTime();
+		long invoiceID = this.engine.newInvoice(fields[0].trim(), fields[1].trim(),
+				fields[2].trim(), fields[3].trim());
+
+		int accepted = 0;
+		if (this.engine.addPurchases(invoiceID, productIDs, quantities).isAccepted()) {
+			accepted = lines.length;
+		} else {
+			for (int line = 0; line < lines.length; line++) {
+				OrderResult result = this.engine.addPurchase(invoiceID, productIDs[line],
+						quantities[line]);
+				if (result.isAccepted())
+					accepted++;
+				else
+					reject(result.getStatus());
+			}
+		}
+
+		OrderResult result;
+		if (accepted == 0) {
+			result = this.engine.cancel(invoiceID);
+			this.ordersRejected++;
+		} else {
+			String deliveryCountry = fields[5].trim();
+			if (!deliveryCountry.isEmpty()) {
+				OrderResult delivery = this.engine.addDelivery(invoiceID, fields[6].trim(),
+						deliveryCountry);
+				if (!delivery.isAccepted())
+					reject(delivery.getStatus());
+			}
+			if (insured.equalsIgnoreCase("Y"))
+				this.engine.addInsurance(invoiceID);
+
+			result = this.engine.finalise(invoiceID, false);
+			this.invoices++;
+			if (!result.isAccepted())
+				reject(result.getStatus());
+		}
+		long latency = System.nanoTime() - start;
+
+		// Each invoice is written as it is made, so a long replay holds none of
+		// them in memory.
+		if (result.getInvoice() != null && this.invoicesOut != null) {
+			result.getInvoice().displayInvoice(this.invoicesOut);
+			this.invoicesOut.flush();
+		}
+
+		this.linesAccepted += accepted;
+		if (this.orders == this.latencies.length)
+			this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+		this.latencies[(int) this.orders++] = latency;
+		this.latenciesSorted = false;
+		return result;
+	}
+
+	// Accessors for the counts so far.
+	public long getOrders() {
+		return this.orders;
+	}
+
+	public long getInvoices() {
+		return this.invoices;
+	}
+
+	public long getOrdersRejected() {
+		return this.ordersRejected;
+	}
+
+	public long getLinesAccepted() {
+		return this.linesAccepted;
+	}
+
+	public long getMalformedLines() {
+		return this.malformedLines;
+	}
+
+	// Returns how many times a line, delivery or archive was rejected for the
+	// given reason.
+	public long getRejects(OrderResult.Status status) {
+		return this.rejects.getOrDefault(status, 0L);
+	}
+
+	// Returns the time within which the given percentage of orders were
+	// replayed, in nanoseconds, or 0 if none have been.
+	public long getLatencyPercentile(double percentile) {
+		if (this.orders == 0)
+			return 0;
+
+		if (!this.latenciesSorted) {
+			Arrays.sort(this.latencies, 0, (int) this.orders);
+			this.latenciesSorted = true;
+		}
+
+		// Nearest rank: the smallest latency at least that share of orders is
+		// within.
+		int rank = (int) Math.ceil(percentile / 100 * this.orders);
+		return this.latencies[Math.max(rank, 1) - 1];
+	}
+
+	// Prints a summary of every file replayed so far.
+	public void printSummary(OutputSink out) {
+		double seconds = this.elapsedNanos / 1e9;
+
+		out.printf("Replayed %,d orders in %,.0f ms (%,.0f orders/s)%n", this.orders,
+				seconds * 1000, seconds > 0 ? this.orders / seconds : 0);
+		out.printf("Invoices finalised: %,d%n", this.invoices);
+		out.printf("Orders rejected: %,d%n", this.ordersRejected);
+		out.printf("Lines accepted: %,d%n", this.linesAccepted);
+		out.printf("Lines rejected: %,d invalid product (-1), %,d invalid quantity (-2), "
+				+ "%,d out of stock (-3)%n", getRejects(OrderResult.Status.INVALID_PRODUCT),
+				getRejects(OrderResult.Status.INVALID_QUANTITY),
+				getRejects(OrderResult.Status.OUT_OF_STOCK));
+		out.printf("Deliveries refused: %,d%n", getRejects(OrderResult.Status.NOT_DELIVERED));
+		out.printf("Invoices not archived: %,d%n",
+				getRejects(OrderResult.Status.NOT_ARCHIVED));
+		out.printf("Malformed lines: %,d%n", this.malformedLines);
+
+		out.print("Latency per order:");
+		for (double percentile : PERCENTILES)
+			out.printf(" p%.0f %,.1f us,", percentile,
+					getLatencyPercentile(percentile) / 1000.0);
+		out.printf(" max %,.1f us%n", getLatencyPercentile(100) / 1000.0);
+		out.flush();
+	}
+
+	private void reject(OrderResult.Status status) {
+		this.rejects.merge(status, 1L, Long::sum);
+	}
+}
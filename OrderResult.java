@@ -0,0 +1,104 @@
+import java.io.IOException;
+
+/**
+ * An OrderResult is what an OrderEngine reports back for each order command.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Retrieving whether the command was accepted, and if not, why.
+ * 
+ * Retrieving the invoice the command was for.
+ * 
+ * Retrieving the stock level left after a purchase, and whether it set off a
+ * reorder.
+ * 
+ * Retrieving the finalised invoice, and why it could not be archived if it
+ * was not.
+ * 
+ * Results are never changed once made, so they may be handed between threads.
+ */
+
+public final class OrderResult {
+
+	// Why a command was or was not carried out.
+	public enum Status {
+		ACCEPTED,
+
+		// No open invoice has the ID given.
+		NO_SUCH_INVOICE,
+
+		// The purchase named no product in the inventory.
+		INVALID_PRODUCT,
+
+		// The purchase was for no more than 0 items.
+		INVALID_QUANTITY,
+
+		// The purchase was for more than the stock left.
+		OUT_OF_STOCK,
+
+		// The country is not delivered to, so the order must be picked up. The
+		// order itself is unchanged.
+		NOT_DELIVERED,
+
+		// The invoice was finalised, but could not be archived.
+		NOT_ARCHIVED
+	}
+
+	private final Status status;
+	private final long invoiceID;
+	private final int stockLevel;
+	private final boolean reorderScheduled;
+	private final Invoice2 invoice;
+	private final IOException error;
+
+	// Constructor of OrderResult. Only OrderEngine makes results.
+	OrderResult(Status status, long invoiceID, int stockLevel, boolean reorderScheduled,
+			Invoice2 invoice, IOException error) {
+		this.status = status;
+		this.invoiceID = invoiceID;
+		this.stockLevel = stockLevel;
+		this.reorderScheduled = reorderScheduled;
+		this.invoice = invoice;
+		this.error = error;
+	}
+
+	// Makes a result with nothing to report beyond its status.
+	static OrderResult of(Status status, long invoiceID) {
+		return new OrderResult(status, invoiceID, -1, false, null, null);
+	}
+
+	public Status getStatus() {
+		return this.status;
+	}
+
+	// Returns true if the command was carried out as asked.
+	public boolean isAccepted() {
+		return this.status == Status.ACCEPTED;
+	}
+
+	public long getInvoiceID() {
+		return this.invoiceID;
+	}
+
+	// Accessor for the stock level left after a purchase, or -1 for other
+	// commands.
+	public int getStockLevel() {
+		return this.stockLevel;
+	}
+
+	// Returns true if a purchase left its product low enough to be reordered.
+	public boolean isReorderScheduled() {
+		return this.reorderScheduled;
+	}
+
+	// Accessor for the finalised invoice, or null for other commands.
+	public Invoice2 getInvoice() {
+		return this.invoice;
+	}
+
+	// Accessor for why a finalised invoice was not archived, or null.
+	public IOException getError() {
+		return this.error;
+	}
+}
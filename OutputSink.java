@@ -0,0 +1,36 @@
+/**
+ * An OutputSink is where the Sales System writes what it shows the user.
+ * 
+ * This interface allows a Sales System user to write to a sink in the
+ * following ways:
+ * 
+ * Printing text, a line, or formatted text, as System.out would.
+ * 
+ * Flushing, which sends everything printed since the last flush on at once.
+ * 
+ * Nothing printed need appear until the sink is flushed, so a whole screen or
+ * invoice is built up first and then written in one go. Flush before waiting
+ * for the user's input.
+ * 
+ * BufferedOutputSink writes to the console, a file or a stream;
+ * MemoryOutputSink keeps the output for batch runs and tests to read back.
+ */
+
+public interface OutputSink {
+
+	void print(CharSequence text);
+
+	// Prints text as String.format would lay it out.
+	void printf(String format, Object... arguments);
+
+	void flush();
+
+	default void println(CharSequence text) {
+		print(text);
+		println();
+	}
+
+	default void println() {
+		print(System.lineSeparator());
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * A ProductSnapshot holds the details of one product in inventory, as they
+ * were at a single moment.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Retrieving the product's ID, description and price.
+ * 
+ * Retrieving the product's stock level when the snapshot was taken.
+ * 
+ * Snapshots are immutable, so they may be shared between threads. They are
+ * not updated when the stock level changes afterwards.
+ */
+
+public class ProductSnapshot {
+
+	private final String productID, description;
+	private final long priceCents;
+	private final int stockLevel;
+
+	// Constructor of ProductSnapshot. Only Inventory takes snapshots.
+	ProductSnapshot(String productID, String description, long priceCents,
+			int stockLevel) {
+		this.productID = productID;
+		this.description = description;
+		this.priceCents = priceCents;
+		this.stockLevel = stockLevel;
+	}
+
+	// Accessor for the product's ID.
+	public String getProductID() {
+		return this.productID;
+	}
+
+	// Accessor for the product's description.
+	public String getDescription() {
+		return this.description;
+	}
+
+	// Accessor for the product's price.
+	public double getPrice() {
+		return Money.toDollars(this.priceCents);
+	}
+
+	// Accessor for the product's price in cents.
+	public long getPriceCents() {
+		return this.priceCents;
+	}
+
+	// Accessor for the product's stock level when the snapshot was taken.
+	public int getStockLevel() {
+		return this.stockLevel;
+	}
+}
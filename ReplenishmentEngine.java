@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ReplenishmentEngine reorders stock in the background when it runs low.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Setting the stock level at which a product is reordered, and the level it is
+ * reordered up to.
+ * 
+ * Reporting a product's stock level after a sale, without waiting.
+ * 
+ * Retrieving how many reorders were placed, how many failed and were left for
+ * the next run, and how many low stock reports were folded into a reorder
+ * already scheduled.
+ * 
+ * Reports only mark a product as needing stock. A background thread collects
+ * the marked products on a fixed schedule and places one orderStock call for
+ * each, topping it up to its reorder level. Any number of sales of a product
+ * between two runs therefore cost a single reorder, and the checkout path never
+ * waits on the reorder.
+ */
+
+public class ReplenishmentEngine implements AutoCloseable {
+
+	// Default schedule, threshold and reorder level.
+	public static final long DEFAULT_PERIOD_MILLIS = 5000;
+	public static final int DEFAULT_THRESHOLD = 1;
+	public static final int DEFAULT_REORDER_LEVEL = 10;
+
+	private final Inventory inventory;
+	private final ScheduledExecutorService scheduler;
+	private final int defaultThreshold, defaultReorderLevel;
+
+	// Per-product overrides, as { threshold, reorder level }.
+	private final Map<String, int[]> rules = new ConcurrentHashMap<>();
+
+	// Products reported at or below their threshold since the last run.
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	private final LongAdder reordersPlaced = new LongAdder();
+	private final LongAdder unitsOrdered = new LongAdder();
+	private final LongAdder reportsCoalesced = new LongAdder();
+	private final LongAdder reorderFailures = new LongAdder();
+
+	// Constructor of ReplenishmentEngine with the default schedule, threshold and
+	// reorder level.
+	public ReplenishmentEngine(Inventory inventory) {
+		this(inventory, DEFAULT_PERIOD_MILLIS, DEFAULT_THRESHOLD, DEFAULT_REORDER_LEVEL);
+	}
+
+	// Constructor of ReplenishmentEngine. Products at or below threshold are
+	// topped up to reorderLevel every periodMillis.
+	public ReplenishmentEngine(Inventory inventory, long periodMillis, int threshold,
+			int reorderLevel) {
+		checkRule(threshold, reorderLevel);
+
+		this.inventory = inventory;
+		this.defaultThreshold = threshold;
+		this.defaultReorderLevel = reorderLevel;
+
+		// A daemon thread, so a running engine never keeps the program open.
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "replenishment");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::replenish, periodMillis,
+				periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Sets the threshold and reorder level for one product.
+	public void setRule(String productID, int threshold, int reorderLevel) {
+		checkRule(threshold, reorderLevel);
+		this.rules.put(productID, new int[] { threshold, reorderLevel });
+	}
+
+	// Reports a product's stock level after it changed. Returns true if the product
+	// is low and a reorder is scheduled for it. Never waits.
+	public boolean stockChanged(String productID, int stockLevel) {
+		if (stockLevel > threshold(productID))
+			return false;
+
+		// A product already waiting for the next run needs no second reorder.
+		if (!this.pending.add(productID))
+			this.reportsCoalesced.increment();
+
+		return true;
+	}
+
+	// Places the reorders for every product reported low since the last run.
+	// Runs on the schedule, but may also be called directly.
+	public void replenish() {
+		List<String> failed = new ArrayList<>();
+
+		for (String productID : this.pending) {
+			// Claim the product, in case a direct call and the schedule overlap.
+			if (!this.pending.remove(productID))
+				continue;
+
+			try {
+				// The level may have changed since it was reported, so check it again.
+				int stockLevel = this.inventory.getStockLevel(productID);
+				int[] rule = this.rules.get(productID);
+				int threshold = rule == null ? this.defaultThreshold : rule[0];
+				int reorderLevel = rule == null ? this.defaultReorderLevel : rule[1];
+
+				if (stockLevel >= 0 && stockLevel <= threshold
+						&& this.inventory.orderStock(productID, reorderLevel - stockLevel) >= 0) {
+					this.reordersPlaced.increment();
+					this.unitsOrdered.add(reorderLevel - stockLevel);
+				}
+			} catch (RuntimeException e) {
+				// Nothing was ordered, such as when the stock journal cannot be
+				// written, so the reorder is tried again next run.
+				failed.add(productID);
+				this.reorderFailures.increment();
+			}
+		}
+
+		// Kept out of pending until the pass is over, so it is not retried in it.
+		this.pending.addAll(failed);
+	}
+
+	// Accessor for the number of reorders placed.
+	public long getReordersPlaced() {
+		return this.reordersPlaced.sum();
+	}
+
+	// Accessor for the total quantity reordered.
+	public long getUnitsOrdered() {
+		return this.unitsOrdered.sum();
+	}
+
+	// Accessor for the number of low stock reports folded into a reorder that was
+	// already scheduled.
+	public long getReportsCoalesced() {
+		return this.reportsCoalesced.sum();
+	}
+
+	// Accessor for the number of reorders that failed and were left for the next
+	// run.
+	public long getReorderFailures() {
+		return this.reorderFailures.sum();
+	}
+
+	// Stops the schedule after placing any reorders still pending.
+	@Override
+	public void close() {
+		this.scheduler.shutdown();
+		replenish();
+	}
+
+	private int threshold(String productID) {
+		int[] rule = this.rules.get(productID);
+		return rule == null ? this.defaultThreshold : rule[0];
+	}
+
+	private static void checkRule(int threshold, int reorderLevel) {
+		if (threshold < 0 || reorderLevel <= threshold)
+			throw new IllegalArgumentException(
+					"The reorder level must be above a non-negative threshold");
+	}
+}
@@ -0,0 +1,432 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A SalesHttpServer takes orders over HTTP, with JSON requests and responses,
+ * and carries them out through an OrderEngine.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * POST /invoices with the customer's name, address, country and phoneNumber
+ * starts a new invoice and returns its invoiceID.
+ * 
+ * GET /invoices/{id} returns an open invoice.
+ * 
+ * POST /invoices/{id}/purchases with a productID and quantity adds a purchase.
+ * 
+ * POST /invoices/{id}/delivery with a city and country adds delivery, and POST
+ * /invoices/{id}/insurance adds insurance.
+ * 
+ * POST /invoices/{id}/finalise finalises the invoice and returns it, as
+ * JsonInvoiceExporter writes it.
+ * 
+ * GET /inventory lists every product's ID and stock level.
+ * 
+ * A command's response holds its OrderResult status, with 200 or 201 when it
+ * was accepted, 404 for an unknown invoice, 400 for a bad product or
+ * quantity and 409 when it could not be carried out as things stand. A
+ * request that is malformed or missing a field gets 400 and says why. Any
+ * other failure gets 500, and is printed to standard error.
+ * 
+ * Each request runs on a virtual thread where the Java runtime has them, or on
+ * a pool of threads otherwise. Responses other than the inventory have a known
+ * length, so clients can keep their connections open for the next request.
+ * The inventory is written out in chunks as it is listed, so even a catalog of
+ * millions of products is never held in memory as a whole.
+ */
+
+public class SalesHttpServer implements AutoCloseable {
+
+	// Threads per processor handling requests without virtual threads.
+	private static final int THREADS_PER_PROCESSOR = 8;
+
+	private static final String JSON = "application/json; charset=utf-8";
+
+	// The JDK's server writes a response's headers and body separately, so with
+	// Nagle's algorithm a kept-alive client waits out its delayed ACK for every
+	// body. The setting is read once, when the first server is created, and a
+	// value given on the command line is left alone.
+	static {
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final OrderEngine engine;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * Starts a server taking orders through an engine.
+	 * 
+	 * @param engine  The engine orders are carried out by.
+	 * @param address The address to listen on. Port 0 picks a free port.
+	 * 
+	 * @throws IOException if the address cannot be listened on.
+	 */
+	public SalesHttpServer(OrderEngine engine, InetSocketAddress address)
+			throws IOException {
+		this.engine = engine;
+		this.executor = VirtualThreads.newExecutor("sales-http",
+				Runtime.getRuntime().availableProcessors() * THREADS_PER_PROCESSOR);
+
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+		this.server.start();
+	}
+
+	// Accessor for the port the server listens on.
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	// Stops taking requests, letting those under way finish.
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdown();
+	}
+
+	// Routes each request by its method and path.
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			String[] path = exchange.getRequestURI().getPath().split("/");
+			Map<String, String> body = readBody(exchange.getRequestBody());
+
+			if (path.length == 2 && path[1].equals("inventory") && method.equals("GET")) {
+				listInventory(exchange);
+			} else if (path.length == 2 && path[1].equals("invoices")
+					&& method.equals("POST")) {
+				long invoiceID = this.engine.newInvoice(required(body, "name"),
+						required(body, "address"), required(body, "country"),
+						required(body, "phoneNumber"));
+				respond(exchange, 201, "{\"status\":\"ACCEPTED\",\"invoiceID\":" + invoiceID
+						+ "}");
+			} else if (path.length >= 3 && path[1].equals("invoices")) {
+				long invoiceID = Long.parseLong(path[2]);
+
+				if (path.length == 3 && method.equals("GET"))
+					showInvoice(exchange, invoiceID);
+				else if (path.length == 4 && method.equals("POST"))
+					command(exchange, invoiceID, path[3], body);
+				else
+					respond(exchange, 404, "{\"error\":\"Not found\"}");
+			} else {
+				respond(exchange, 404, "{\"error\":\"Not found\"}");
+			}
+		} catch (IllegalArgumentException e) {
+			// Covers malformed JSON, ID's and quantities, and missing fields.
+			respond(exchange, 400, "{\"error\":" + jsonString("Malformed request: "
+					+ e.getMessage()) + "}");
+		} catch (RuntimeException e) {
+			System.err.println("SalesHttpServer: " + exchange.getRequestMethod() + " "
+					+ exchange.getRequestURI() + " failed");
+			e.printStackTrace();
+
+			// Once a response has begun it can only be cut short.
+			if (exchange.getResponseCode() == -1)
+				respond(exchange, 500, "{\"error\":\"Internal error\"}");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Carries out a command on an open invoice.
+	private void command(HttpExchange exchange, long invoiceID, String command,
+			Map<String, String> body) throws IOException {
+		OrderResult result;
+
+		if (command.equals("purchases")) {
+			String productID = required(body, "productID");
+			int quantity = Integer.parseInt(required(body, "quantity"));
+			result = this.engine.addPurchase(invoiceID, productID, quantity);
+		} else if (command.equals("delivery")) {
+			result = this.engine.addDelivery(invoiceID, required(body, "city"),
+					required(body, "country"));
+		} else if (command.equals("insurance")) {
+			result = this.engine.addInsurance(invoiceID);
+		} else if (command.equals("finalise")) {
+			result = this.engine.finalise(invoiceID);
+			if (result.getInvoice() != null) {
+				send(exchange, result.isAccepted() ? 200 : 500,
+						invoiceJson(result.getInvoice()));
+				return;
+			}
+		} else {
+			respond(exchange, 404, "{\"error\":\"Not found\"}");
+			return;
+		}
+
+		respond(exchange, statusCode(result.getStatus()),
+				"{\"status\":\"" + result.getStatus() + "\",\"invoiceID\":" + invoiceID
+						+ ",\"stockLevel\":" + result.getStockLevel()
+						+ ",\"reorderScheduled\":" + result.isReorderScheduled() + "}");
+	}
+
+	// Returns an open invoice.
+	private void showInvoice(HttpExchange exchange, long invoiceID) throws IOException {
+		Invoice2 invoice = this.engine.getInvoice(invoiceID);
+
+		if (invoice == null) {
+			respond(exchange, 404, "{\"status\":\"NO_SUCH_INVOICE\",\"invoiceID\":"
+					+ invoiceID + "}");
+			return;
+		}
+
+		// Read while the engine cannot change it, but sent once the lock is let
+		// go, so a slow client does not hold up the invoice's next command.
+		byte[] json;
+		synchronized (invoice) {
+			json = invoiceJson(invoice);
+		}
+		send(exchange, 200, json);
+	}
+
+	// Writes the inventory as a JSON array in chunks, as it is listed.
+	private void listInventory(HttpExchange exchange) throws IOException {
+		Inventory inventory = this.engine.getInventory();
+
+		exchange.getResponseHeaders().set("Content-Type", JSON);
+		exchange.sendResponseHeaders(200, 0);
+
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(
+				exchange.getResponseBody(), StandardCharsets.UTF_8), 64 << 10)) {
+			out.write('[');
+
+			String[] productIDs = inventory.productIDs();
+			for (int i = 0; i < productIDs.length; i++) {
+				if (i > 0)
+					out.write(',');
+				out.write("{\"productID\":");
+				writeString(out, productIDs[i]);
+				out.write(",\"stockLevel\":");
+				out.write(Integer.toString(inventory.getStockLevel(productIDs[i])));
+				out.write('}');
+			}
+			out.write("]\n");
+		}
+	}
+
+	// An invoice as JsonInvoiceExporter writes it.
+	private static byte[] invoiceJson(InvoiceRecord invoice) throws IOException {
+		ByteArrayOutputStream json = new ByteArrayOutputStream(1024);
+		JsonInvoiceExporter exporter = new JsonInvoiceExporter(Channels.newChannel(json),
+				1024);
+		exporter.export(invoice);
+		exporter.flush();
+
+		return json.toByteArray();
+	}
+
+	private static void respond(HttpExchange exchange, int statusCode, String json)
+			throws IOException {
+		send(exchange, statusCode, (json + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Sends a response of known length, so the connection can be kept open.
+	private static void send(HttpExchange exchange, int statusCode, byte[] body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", JSON);
+		exchange.sendResponseHeaders(statusCode, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	// The HTTP status a command's result is returned with.
+	private static int statusCode(OrderResult.Status status) {
+		switch (status) {
+		case ACCEPTED:
+			return 200;
+		case NO_SUCH_INVOICE:
+			return 404;
+		case INVALID_PRODUCT:
+		case INVALID_QUANTITY:
+			return 400;
+		case NOT_ARCHIVED:
+			return 500;
+		default:
+			return 409;
+		}
+	}
+
+	// A field of a request body that must be given.
+	private static String required(Map<String, String> body, String name) {
+		String value = body.get(name);
+		if (value == null)
+			throw new IllegalArgumentException(name + " is missing");
+		return value;
+	}
+
+	// Reads a request body holding a flat JSON object, or nothing. Nested arrays
+	// and objects are not accepted; every value is kept as its text.
+	private static Map<String, String> readBody(InputStream in) throws IOException {
+		String body = new String(in.readAllBytes(), StandardCharsets.UTF_8).strip();
+		Map<String, String> fields = new HashMap<>();
+
+		if (body.isEmpty())
+			return fields;
+
+		JsonReader reader = new JsonReader(body);
+		reader.expect('{');
+		if (!reader.next('}')) {
+			do {
+				String name = reader.string();
+				reader.expect(':');
+				fields.put(name, reader.value());
+			} while (reader.next(','));
+			reader.expect('}');
+		}
+		reader.end();
+		return fields;
+	}
+
+	// Reads the few JSON forms a request body is made of.
+	private static final class JsonReader {
+		private final String text;
+		private int at;
+
+		JsonReader(String text) {
+			this.text = text;
+		}
+
+		void skipSpaces() {
+			while (this.at < this.text.length()
+					&& Character.isWhitespace(this.text.charAt(this.at)))
+				this.at++;
+		}
+
+		// Skips spaces and reports whether the next character is c, taking it if so.
+		boolean next(char c) {
+			skipSpaces();
+			if (this.at < this.text.length() && this.text.charAt(this.at) == c) {
+				this.at++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(char c) {
+			if (!next(c))
+				throw new IllegalArgumentException("Expected " + c + " at " + this.at);
+		}
+
+		void end() {
+			skipSpaces();
+			if (this.at != this.text.length())
+				throw new IllegalArgumentException("Unexpected text at " + this.at);
+		}
+
+		// A string, number, true, false or null, as text; null is null.
+		String value() {
+			skipSpaces();
+			if (this.at < this.text.length() && this.text.charAt(this.at) == '"')
+				return string();
+
+			int start = this.at;
+			while (this.at < this.text.length() && "{}[],:\" \t\r\n"
+					.indexOf(this.text.charAt(this.at)) < 0)
+				this.at++;
+
+			String value = this.text.substring(start, this.at);
+			if (value.isEmpty())
+				throw new IllegalArgumentException("Expected a value at " + start);
+			return value.equals("null") ? null : value;
+		}
+
+		String string() {
+			expect('"');
+			StringBuilder value = new StringBuilder();
+
+			while (true) {
+				if (this.at >= this.text.length())
+					throw new IllegalArgumentException("Unterminated string");
+
+				char c = this.text.charAt(this.at++);
+				if (c == '"')
+					return value.toString();
+				if (c != '\\') {
+					value.append(c);
+					continue;
+				}
+
+				if (this.at >= this.text.length())
+					throw new IllegalArgumentException("Unterminated string");
+				char escaped = this.text.charAt(this.at++);
+				switch (escaped) {
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'u':
+					if (this.at + 4 > this.text.length())
+						throw new IllegalArgumentException("Bad escape");
+					value.append((char) Integer.parseInt(this.text.substring(this.at,
+							this.at + 4), 16));
+					this.at += 4;
+					break;
+				default:
+					value.append(escaped);
+				}
+			}
+		}
+	}
+
+	// A JSON string, quoted and escaped.
+	private static String jsonString(String text) {
+		StringWriter out = new StringWriter(text.length() + 2);
+		try {
+			writeString(out, text);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	// Writes a JSON string.
+	private static void writeString(Writer out, String text) throws IOException {
+		out.write('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			} else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+}
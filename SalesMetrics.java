@@ -0,0 +1,425 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * SalesMetrics counts and times what the Sales System does, and publishes it
+ * through JMX, so it can be watched with jconsole or any JMX client while the
+ * system runs.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Enabling metrics, which registers one MXBean per Inventory call under
+ * "SalesSystem:type=InventoryCall" and one per order stage under
+ * "SalesSystem:type=Stage", and disabling them again.
+ * 
+ * Retrieving, for every Inventory call, how many calls succeeded and how many
+ * were rejected for an invalid product ID (-1), an invalid quantity (-2) or
+ * insufficient stock (-3).
+ * 
+ * Retrieving, for every call other than a lookup of a single product or of
+ * all product ID's, and for adding a purchase, finalising an order, archiving,
+ * indexing and rendering an invoice, how many there were and how long they
+ * took: the mean, the 50th, 90th and 99th percentiles and the maximum.
+ * 
+ * Resetting any of the above.
+ * 
+ * Each count is a LongAdder, which spreads updates from different threads over
+ * separate cells, so tills never contend on a metric. Every call and stage is
+ * counted, but reading the clock costs more than a stock lookup, so lookups of
+ * a single product or of all product ID's are never timed, and of the rest
+ * only a random sample is: one in 16 unless enabled otherwise. Times are kept
+ * in a histogram of power-of-two buckets of nanoseconds, one LongAdder per
+ * bucket, so percentiles are exact to within a factor of two. While metrics
+ * are disabled, recording costs one read of a field.
+ */
+
+public final class SalesMetrics {
+
+	// The Inventory calls counted, with the names they are published under.
+	public enum Call {
+		GET_ALL_PRODUCT_IDS("getAllProductIDs"), GET_DESCRIPTION("getDescription"),
+		GET_PRICE("getPrice"), GET_PRICE_CENTS("getPriceCents"),
+		GET_STOCK_LEVEL("getStockLevel"), GET_PRODUCT("getProduct"),
+		GET_PRODUCTS("getProducts"), REMOVE_STOCK("removeStock"),
+		RESERVE_STOCK("reserveStock"), ORDER_STOCK("orderStock");
+
+		private final String name;
+
+		Call(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	// The stages of an order timed, with the names they are published under.
+	public enum Stage {
+		ADD_PURCHASE("addPurchase"), FINALISE_ORDER("finaliseOrder"),
+		ARCHIVE_INVOICE("archiveInvoice"), INDEX_INVOICE("indexInvoice"),
+		RENDER_INVOICE("renderInvoice");
+
+		private final String name;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+	}
+
+	// One in how many calls and stages are timed by default.
+	public static final int DEFAULT_SAMPLE_EVERY = 16;
+
+	// What start returns while metrics are disabled, and for a call or stage
+	// left out of the sample.
+	private static final long DISABLED = Long.MIN_VALUE;
+	private static final long UNTIMED = Long.MIN_VALUE + 1;
+
+	private static final String DOMAIN = "SalesSystem";
+
+	// The enabled metrics, or null.
+	private static volatile SalesMetrics active;
+
+	private final Latency[] calls = new Latency[Call.values().length];
+	private final Latency[] stages = new Latency[Stage.values().length];
+	private final int sampleEvery;
+
+	// Names of the MXBeans these metrics registered.
+	private final List<ObjectName> registered = new ArrayList<>();
+
+	private SalesMetrics(int sampleEvery) {
+		this.sampleEvery = sampleEvery;
+		for (Call call : Call.values())
+			this.calls[call.ordinal()] = new InventoryCall();
+		for (Stage stage : Stage.values())
+			this.stages[stage.ordinal()] = new Latency();
+	}
+
+	// Enables metrics, timing one in DEFAULT_SAMPLE_EVERY calls and stages.
+	public static SalesMetrics enable() {
+		return enable(DEFAULT_SAMPLE_EVERY);
+	}
+
+	/**
+	 * Enables metrics, registering their MXBeans with the platform MBean server.
+	 * Enabling metrics that are already enabled returns them as they are.
+	 * 
+	 * @param sampleEvery One in how many calls and stages are timed. A till
+	 *                    taking orders by hand can afford to time every one,
+	 *                    with 1.
+	 * 
+	 * @return the enabled metrics.
+	 * 
+	 * @throws IllegalArgumentException if sampleEvery is less than 1.
+	 * @throws IllegalStateException    if the MXBeans cannot be registered.
+	 */
+	public static synchronized SalesMetrics enable(int sampleEvery) {
+		if (sampleEvery < 1)
+			throw new IllegalArgumentException("Must time at least one in every "
+					+ "sampleEvery calls");
+		if (active != null)
+			return active;
+
+		SalesMetrics metrics = new SalesMetrics(sampleEvery);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (Call call : Call.values())
+				metrics.register(server, metrics.calls[call.ordinal()],
+						name("InventoryCall", call.getName()));
+			for (Stage stage : Stage.values())
+				metrics.register(server, metrics.stages[stage.ordinal()],
+						name("Stage", stage.getName()));
+		} catch (JMException e) {
+			metrics.unregister();
+			throw new IllegalStateException("Metrics could not be registered", e);
+		}
+
+		active = metrics;
+		return metrics;
+	}
+
+	// Disables metrics and unregisters their MXBeans.
+	public static synchronized void disable() {
+		SalesMetrics metrics = active;
+		active = null;
+		if (metrics != null)
+			metrics.unregister();
+	}
+
+	// Accessor for the enabled metrics, or null when they are disabled.
+	public static SalesMetrics getActive() {
+		return active;
+	}
+
+	// Returns the time a call or stage starts, to pass to record. Calls and
+	// stages left out of the sample, or made while metrics are disabled, are
+	// not given a time.
+	public static long start() {
+		SalesMetrics metrics = active;
+		if (metrics == null)
+			return DISABLED;
+		if (metrics.sampleEvery > 1
+				&& ThreadLocalRandom.current().nextInt(metrics.sampleEvery) != 0)
+			return UNTIMED;
+		return System.nanoTime();
+	}
+
+	// Records an Inventory call that is counted but not timed, with its result
+	// as the call returned it: a stock level or index, or -1 if rejected.
+	public static void count(Call call, int result) {
+		SalesMetrics metrics = active;
+		if (metrics != null)
+			((InventoryCall) metrics.calls[call.ordinal()]).count(result);
+	}
+
+	// Records an Inventory call started as start returned, with its result as
+	// the call returned it: a stock level or index, or -1, -2 or -3 if rejected.
+	public static void record(Call call, int result, long start) {
+		SalesMetrics metrics = active;
+		if (metrics == null || start == DISABLED)
+			return;
+
+		InventoryCall inventoryCall = (InventoryCall) metrics.calls[call.ordinal()];
+		inventoryCall.count(result);
+		if (start != UNTIMED)
+			inventoryCall.time(System.nanoTime() - start);
+	}
+
+	// Records an order stage started as start returned.
+	public static void record(Stage stage, long start) {
+		SalesMetrics metrics = active;
+		if (metrics == null || start == DISABLED)
+			return;
+
+		Latency latency = metrics.stages[stage.ordinal()];
+		latency.count.increment();
+		if (start != UNTIMED)
+			latency.time(System.nanoTime() - start);
+	}
+
+	// Accessor for the metrics of an Inventory call.
+	public InventoryCallMXBean getCall(Call call) {
+		return (InventoryCall) this.calls[call.ordinal()];
+	}
+
+	// Accessor for the metrics of an order stage.
+	public LatencyMXBean getStage(Stage stage) {
+		return this.stages[stage.ordinal()];
+	}
+
+	// Resets every count and time.
+	public void reset() {
+		for (Latency latency : this.calls)
+			latency.reset();
+		for (Latency latency : this.stages)
+			latency.reset();
+	}
+
+	private static ObjectName name(String type, String name) throws JMException {
+		return new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+	}
+
+	// Registers an MXBean, remembering its name so only these metrics' own are
+	// unregistered.
+	private void register(MBeanServer server, Object mxBean, ObjectName name)
+			throws JMException {
+		server.registerMBean(mxBean, name);
+		this.registered.add(name);
+	}
+
+	// Unregisters the MXBeans these metrics registered, leaving any others under
+	// the same domain alone.
+	private void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (ObjectName name : this.registered)
+				if (server.isRegistered(name))
+					server.unregisterMBean(name);
+		} catch (JMException e) {
+			throw new IllegalStateException("Metrics could not be unregistered", e);
+		} finally {
+			this.registered.clear();
+		}
+	}
+
+	/**
+	 * How many times something was done and how long it took, as published
+	 * through JMX. Times are in microseconds, over the sample that was timed.
+	 */
+	public interface LatencyMXBean {
+
+		long getCount();
+
+		double getMeanMicros();
+
+		double getP50Micros();
+
+		double getP90Micros();
+
+		double getP99Micros();
+
+		double getMaxMicros();
+
+		void reset();
+	}
+
+	/**
+	 * An Inventory call's times, and how many calls had each outcome.
+	 */
+	public interface InventoryCallMXBean extends LatencyMXBean {
+
+		long getSuccesses();
+
+		long getInvalidProductIDs();
+
+		long getInvalidQuantities();
+
+		long getInsufficientStock();
+	}
+
+	// Count and sampled times of one thing, in power-of-two buckets of
+	// nanoseconds. Bucket i holds times from 2^i up to 2^(i+1) nanoseconds, and
+	// the last holds anything longer.
+	private static class Latency implements LatencyMXBean {
+		private static final int BUCKETS = 48;
+
+		final LongAdder count = new LongAdder();
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder totalNanos = new LongAdder();
+		private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		Latency() {
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				this.buckets[bucket] = new LongAdder();
+		}
+
+		void time(long nanos) {
+			int bucket = nanos <= 0 ? 0
+					: Math.min(63 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+			this.buckets[bucket].increment();
+			this.totalNanos.add(nanos);
+			this.maxNanos.accumulate(nanos);
+		}
+
+		@Override
+		public long getCount() {
+			return this.count.sum();
+		}
+
+		@Override
+		public double getMeanMicros() {
+			long timed = 0;
+			for (LongAdder bucket : this.buckets)
+				timed += bucket.sum();
+			return timed == 0 ? 0 : this.totalNanos.sum() / 1000.0 / timed;
+		}
+
+		@Override
+		public double getP50Micros() {
+			return percentile(50);
+		}
+
+		@Override
+		public double getP90Micros() {
+			return percentile(90);
+		}
+
+		@Override
+		public double getP99Micros() {
+			return percentile(99);
+		}
+
+		@Override
+		public double getMaxMicros() {
+			return this.maxNanos.get() / 1000.0;
+		}
+
+		@Override
+		public void reset() {
+			this.count.reset();
+			for (LongAdder bucket : this.buckets)
+				bucket.reset();
+			this.totalNanos.reset();
+			this.maxNanos.reset();
+		}
+
+		// The top of the bucket the given percentage of times fall within, capped
+		// at the longest time recorded, or 0 if nothing has been recorded.
+		private double percentile(double percentile) {
+			long[] counts = new long[BUCKETS];
+			long count = 0;
+			for (int bucket = 0; bucket < BUCKETS; bucket++)
+				count += counts[bucket] = this.buckets[bucket].sum();
+			if (count == 0)
+				return 0;
+
+			long rank = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+			int bucket = 0;
+			for (long within = counts[0]; within < rank && bucket < BUCKETS - 1;)
+				within += counts[++bucket];
+
+			long top = bucket == BUCKETS - 1 ? Long.MAX_VALUE : 2L << bucket;
+			return Math.min(top, this.maxNanos.get()) / 1000.0;
+		}
+	}
+
+	// An Inventory call's times and outcomes. The outcomes are its count.
+	private static final class InventoryCall extends Latency implements InventoryCallMXBean {
+
+		// Successes, then calls rejected with -1, -2 and -3.
+		private final LongAdder[] outcomes = { new LongAdder(), new LongAdder(),
+				new LongAdder(), new LongAdder() };
+
+		void count(int result) {
+			this.outcomes[result >= 0 ? 0 : Math.min(-result, 3)].increment();
+		}
+
+		@Override
+		public long getCount() {
+			long count = 0;
+			for (LongAdder outcome : this.outcomes)
+				count += outcome.sum();
+			return count;
+		}
+
+		@Override
+		public long getSuccesses() {
+			return this.outcomes[0].sum();
+		}
+
+		@Override
+		public long getInvalidProductIDs() {
+			return this.outcomes[1].sum();
+		}
+
+		@Override
+		public long getInvalidQuantities() {
+			return this.outcomes[2].sum();
+		}
+
+		@Override
+		public long getInsufficientStock() {
+			return this.outcomes[3].sum();
+		}
+
+		@Override
+		public void reset() {
+			super.reset();
+			for (LongAdder outcome : this.outcomes)
+				outcome.reset();
+		}
+	}
+}
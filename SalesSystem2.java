@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
@@ -29,35 +33,88 @@ import java.util.Scanner;
  *         - It displays the entire inventory of Toy Universe every time a
  *         employee add a purchase to an invoice. - This class removes items
  *         from the Inventory class when an item is added to an invoice. - It
- *         prompts the user to re-order stock to replenish the inventory class
- *         when an item quantity is a certain value.
+ *         has stock re-ordered in the background to replenish the inventory
+ *         class when an item quantity is a certain value.
+ * 
+ *         Every order is carried out by an OrderEngine; this class only asks
+ *         the questions and shows the results, so it is one client of the
+ *         engine among others.
  */
 
 public class SalesSystem2 {
 
+	// File the next block of invoice ID's is reserved from.
+	private static final String INVOICE_ID_FILE = "invoice-ids.dat";
+
+	// Directory finalised invoices are archived in.
+	private static final String ARCHIVE_DIRECTORY = "invoices";
+
+	// Directory the archive is indexed in.
+	private static final String INDEX_DIRECTORY = "invoices/index";
+
+	// Company whose inventory is started with when no catalog is loaded.
+	private static final String COMPANY = "Toy Universe";
+
 	// Declaring all instance variables necessary to successfully run SalesSystem.
-	private Inventory inventory;
-	private Invoice2 sale;
-	private int currentItems;
-	private String[] productDescription;
-	private int[] productQuantity;
-	private double[] productPrice;
+	private OrderEngine engine;
+	private long invoiceID;
+	private InventoryView inventoryView;
+	private int inventoryPage;
+	private OutputSink out;
+	private Scanner sc;
+
+	// Set once an invoice is finalised, which ends the session.
+	private boolean finished;
 
 	// Constructor of SalesSystem.
-	// Instance variables initialized in here.
-	// Menu also here which calls other methods.
+	// Instance variables initialized in here. Call run to show the menu.
 	public SalesSystem2() {
+		this(null);
+	}
+
+	// Constructor of SalesSystem over an already loaded inventory, or the
+	// starting inventory if null is passed.
+	public SalesSystem2(Inventory inventory) {
+		this(inventory, null);
+	}
+
+	// Constructor of SalesSystem that also keeps every finalised invoice in an
+	// archive, unless null is passed.
+	public SalesSystem2(Inventory inventory, InvoiceArchive archive) {
+		this(inventory, archive, null);
+	}
+
+	// Constructor of SalesSystem that also indexes every archived invoice, unless
+	// null is passed.
+	public SalesSystem2(Inventory inventory, InvoiceArchive archive, InvoiceIndex index) {
+		this(inventory, archive, index, new BufferedOutputSink());
+	}
+
+	// Constructor of SalesSystem that shows everything through the given sink
+	// rather than straight to the console.
+	public SalesSystem2(Inventory inventory, InvoiceArchive archive, InvoiceIndex index,
+			OutputSink out) {
+		this(new OrderEngine(inventory == null ? new Inventory(COMPANY) : inventory,
+				archive, index), out);
+	}
+
+	// Constructor of SalesSystem taking orders through the given engine.
+	public SalesSystem2(OrderEngine engine, OutputSink out) {
 
 		// Initializing instance variables.
-		this.sale = new Invoice2("Joe (placeholder)", "12 Joe Road (placeholder)",
-				"Australia (placeholder)", "1300 563 563 (placeholder)");
-		this.inventory = new Inventory(sale.getCompany());
-		this.currentItems = 0;
-		this.productDescription = new String[6];
-		this.productQuantity = new int[6];
-		this.productPrice = new double[6];
+		this.engine = engine;
+		this.invoiceID = engine.newInvoice("Joe (placeholder)",
+				"12 Joe Road (placeholder)", "Australia (placeholder)",
+				"1300 563 563 (placeholder)");
+		this.inventoryView = new InventoryView(engine.getInventory());
+		this.inventoryPage = 1;
+		this.out = out;
+		this.sc = new Scanner(System.in);
+	}
 
-		Scanner sc = new Scanner(System.in);
+	// Shows the menu and carries out each choice until the user exits or an
+	// invoice is finalised.
+	public void run() {
 
 		// The menu for the program. This is the forst thing a user sees when starting
 		// this program.
@@ -66,11 +123,12 @@ public class SalesSystem2 {
 		startMenu += "A) Start a new invoice \n";
 		startMenu += "B) View purchase information \n";
 		startMenu += "C) Add purchase \n";
+		startMenu += "D) View inventory \n";
 		startMenu += "X) Exit sales system";
 
 		// Asks the user for an input.
-		System.out.println(startMenu);
-		String tempInput = sc.nextLine();
+		this.out.println(startMenu);
+		String tempInput = readLine();
 
 		// This loop continues program until either user selects exit or an invoice is
 		// finalized.
@@ -80,298 +138,362 @@ public class SalesSystem2 {
 			// process.
 			if (tempInput.equalsIgnoreCase("A")) {
 				newInvoice();
-				System.out.println(startMenu);
-				tempInput = sc.nextLine();
+				this.out.println(startMenu);
+				tempInput = readLine();
 			}
 
 			// If user select B, displays current invoice.
 			else if (tempInput.equalsIgnoreCase("B")) {
-				this.sale.displayInvoice();
-				System.out.println(startMenu);
-				tempInput = sc.nextLine();
+				this.engine.getInvoice(this.invoiceID).displayInvoice(this.out);
+				this.out.println(startMenu);
+				tempInput = readLine();
 			}
 
 			// If user selects C, adds a purchase to current invoice.
 			else if (tempInput.equalsIgnoreCase("C")) {
 				addPurchase();
-				System.out.println(startMenu);
-				tempInput = sc.nextLine();
+				if (this.finished)
+					break;
+				this.out.println(startMenu);
+				tempInput = readLine();
+			}
+
+			// If user selects D, shows a page of the inventory.
+			else if (tempInput.equalsIgnoreCase("D")) {
+				viewInventory();
+				this.out.println(startMenu);
+				tempInput = readLine();
 			}
 
 			// If user selects X, exits the program.
 			else if (tempInput.equalsIgnoreCase("X")) {
-				System.exit(0);
+				break;
 			}
 
 			// If user has a different input than those above, shows an error message and
 			// prompts the user again.
 			else {
-				System.out
-						.println("You have entered an invalid choice, please try again");
-				System.out.println(startMenu);
-				tempInput = sc.nextLine();
+				this.out.println("You have entered an invalid choice, please try again");
+				this.out.println(startMenu);
+				tempInput = readLine();
 			}
 		}
+		this.out.flush();
 	}
 
 	// This method starts a new invoice by asking for customer details and replacing
 	// current invoice object.
 	public void newInvoice() {
 
-		Scanner sc = new Scanner(System.in);
-
 		// Asks for customer details.
-		System.out.println("What is the customers name");
-		String name = sc.nextLine();
+		this.out.println("What is the customers name");
+		String name = readLine();
 
-		System.out.println("What is the customers address");
-		String address = sc.nextLine();
+		this.out.println("What is the customers address");
+		String address = readLine();
 
-		System.out.println("What country does the customer live in");
-		String country = sc.nextLine();
+		this.out.println("What country does the customer live in");
+		String country = readLine();
 
-		System.out.println("What is the customers phone number");
-		String phoneNumber = sc.nextLine();
+		this.out.println("What is the customers phone number");
+		String phoneNumber = readLine();
 
-		System.out.println();
+		this.out.println();
 
-		// Replaces the current invoice object with a new one, using customer details as
-		// parameters.
-		this.sale = new Invoice2(name, address, country, phoneNumber);
+		// Replaces the current invoice with a new one, using customer details as
+		// parameters. Stock taken for the old invoice is put back.
+		this.engine.cancel(this.invoiceID);
+		this.invoiceID = this.engine.newInvoice(name, address, country, phoneNumber);
 	}
 
 	// Adding a purchase to the current invoice object.
 	public void addPurchase() {
 
-		Scanner sc = new Scanner(System.in);
-
 		// This shows the entire inventory of Toy Universe.
 		displayInventory();
 
 		// Asks the employee to fill out product ID and quantity of objects a customer
 		// requires.
-		System.out.println("What ID does the customer want to purchase? (e.g. P1)");
-		String productID = sc.nextLine();
-		System.out.println("Quantity customer requires?");
-		int quantity = sc.nextInt();
-		sc.nextLine();
+		this.out.println("What ID does the customer want to purchase? (e.g. P1)");
+		String productID = readLine();
+		this.out.println("Quantity customer requires?");
+		this.out.flush();
+		int quantity = this.sc.nextInt();
+		this.sc.nextLine();
 
 		productID = productID.toUpperCase();
 
-		// Interacts with Inventory class to remove stock from Toy Universe stock
-		// levels.
-		int result = inventory.removeStock(productID, quantity);
+		// Interacts with the order engine to remove stock from Toy Universe stock
+		// levels and add the items to the invoice.
+		OrderResult result = this.engine.addPurchase(this.invoiceID, productID, quantity);
 
 		// shows the user a detailed error message and ends the method.
-		if (result == -2) {
-			System.out.println("Error, you have entered an invalid quantity");
-			System.out.println();
+		if (result.getStatus() == OrderResult.Status.INVALID_QUANTITY) {
+			this.out.println("Error, you have entered an invalid quantity");
+			this.out.println();
 		}
 		// Shows the user a detailed error message and ends the method.
-		else if (result == -1) {
-			System.out.println("Error, the product ID was invalid");
-			System.out.println();
+		else if (result.getStatus() == OrderResult.Status.INVALID_PRODUCT) {
+			this.out.println("Error, the product ID was invalid");
+			this.out.println();
 		}
 		// Shows the user a detailed error message and ends the method.
-		else if (result == -3) {
-			System.out.println(
+		else if (result.getStatus() == OrderResult.Status.OUT_OF_STOCK) {
+			this.out.println(
 					"Error, the quantity entered exceeds Toy Universes' current stock levels");
-			System.out.println();
+			this.out.println();
 		}
 		// If user entered a valid productID and quantity this else statement continues
 		// the method.
 		else {
 
-			// Calling Inventory class to retrieve stock level of an item.
-			int stockLevel = inventory.getStockLevel(productID);
-
 			// Showing user successfully ordered product and updated stock level of the
 			// product.
-			System.out.println("The stock has been ordered successfully");
-			System.out.println(
-					productID + " - Quantity of stock remaining - " + stockLevel);
-
-			// If an items stocks falls below a certain quantity, calls the reorderStock
-			// method.
-			if (stockLevel <= 1)
-				reorderStock(stockLevel, productID, quantity);
-
-			// Retrieving values from the Inventory class.
-			String description = this.inventory.getDescription(productID);
-			double price = this.inventory.getPrice(productID);
+			this.out.println("The stock has been ordered successfully");
+			this.out.println(
+					productID + " - Quantity of stock remaining - " + result.getStockLevel());
 
-			// Adds items to the invoice.
-			this.sale.purchaseRecord(productID, quantity, description, price);
-
-			// Calls Invoice class to calculate total of current purchases.
-			this.sale.itemTotalCost(quantity, price);
-
-			this.currentItems++;
-
-			// Ensures customer can not order more than six items by finalizing a purchase
-			// at six items.
-			if (this.currentItems == 6) {
-				System.out.println(
-						"\nThe customer has ordered the maximum amount of items\n");
-				finaliseOrder();
-			}
+			// The item is reordered in the background if it fell below a certain
+			// quantity.
+			if (result.isReorderScheduled())
+				showReorder(productID);
 
 			// Asks user if invoice is complete. If so, finalizes order.
-			System.out.println();
-			System.out.println("Is the customer ready to finalise their order? (Y or N)");
-			String answer = sc.nextLine();
+			this.out.println();
+			this.out.println("Is the customer ready to finalise their order? (Y or N)");
+			String answer = readLine();
 
 			if (answer.equalsIgnoreCase("Y"))
 				finaliseOrder();
 		}
 	}
 
-	// Re-orders stock at a certain level if employee deems necessary.
-	public void reorderStock(int stockLevel, String productID, int quantity) {
-
-		Scanner sc = new Scanner(System.in);
-
-		if (stockLevel <= 1)
-			System.out.println();
-			System.out.println(
-					"Would you like to order stock to replenish stock levels? (Y or N)");
-
-		String answer = sc.nextLine();
+	// Re-orders stock at a certain level. The replenishment engine places the
+	// order in the background, so the employee is never held up by it.
+	public void reorderStock(String productID, int stockLevel) {
 
-		// If user agrees orders stock equals to quantity ordered. Then shows current
-		// Inventory of that item.
-		if (answer.equalsIgnoreCase("Y")) {
-			this.inventory.orderStock(productID, quantity);
-			System.out.println("Stock was ordered successfully");
-			System.out.println(productID + " - quantity of stock remaining - "
-					+ (stockLevel + quantity));
-		}
-
-		// If user does not just displays current inventory of that item.
-		else if (stockLevel <= 1)
-			System.out.println(
-					productID + " - quantity of stock remaining - " + stockLevel);
+		if (this.engine.reorder(productID, stockLevel))
+			showReorder(productID);
+	}
 
+	// Tells the employee a product is being replenished.
+	private void showReorder(String productID) {
+		this.out.println();
+		this.out.println(
+				"Stock is running low, " + productID + " will be replenished automatically");
 	}
 
 	// This finalizes the order by asking user to enter whether customer needs
 	// delivery and or insurance.
-	// Then this method shows the final invoice and closes the program.
+	// Then this method shows the final invoice and ends the session.
 	public void finaliseOrder() {
 
-		Scanner sc = new Scanner(System.in);
+		// Picks up any change to the delivery rates file since the last order. A
+		// broken file leaves the rates as they were.
+		DeliveryRates rates = DeliveryRates.current();
+		try {
+			rates = DeliveryRates.refresh();
+		} catch (IOException e) {
+			this.out.println("Delivery rates could not be reloaded: " + e.getMessage());
+		}
 
 		// Displays to employee countries permitted for delivery and shows the delivery
 		// cost for each country.
-		System.out.printf("%25s \n", "Delivery");
-		System.out.println("Delivery is only available in Australia/New Zealand/USA");
-		System.out.println();
-		System.out.println("Australia - $9.95");
-		System.out.println("New Zealand - $20.00");
-		System.out.println("Australia - $37.96");
-		System.out.println();
+		this.out.printf("%25s \n", "Delivery");
+		this.out.println(
+				"Delivery is only available in " + String.join("/", rates.getCountries()));
+		this.out.println();
+		for (String country : rates.getCountries())
+			this.out.println(
+					country + " - $" + Money.format(rates.getRateCents(country, null, 0)));
+		this.out.println();
 
 		// Prompting user if customer would like a delivery.
-		System.out.println("Does the customer require delivery?(Y or N)");
-		String answer = sc.nextLine();
+		this.out.println("Does the customer require delivery?(Y or N)");
+		String answer = readLine();
 
 		// If customer agrees to a delivery asks the town and country they would like
 		// the goods shipped too.
 		if (answer.equalsIgnoreCase("Y")) {
-			System.out.println(
+			this.out.println(
 					"Enter the Country the customer would like the goods shipped too");
-			String country = sc.nextLine();
-			System.out.println(
+			String country = readLine();
+			this.out.println(
 					"Enter the Town/City customer would like the goods shipped too");
-			String town = sc.nextLine();
+			String town = readLine();
+
+			// Calls the order engine to add delivery.
+			OrderResult result = this.engine.addDelivery(this.invoiceID, town, country);
 
-			// Calls Invoice method to add delivery.
-			this.sale.addDelivery(town, country);
+			// If customer from other country, this statement appears.
+			if (result.getStatus() == OrderResult.Status.NOT_DELIVERED)
+				this.out.println(
+						"Sorry, we do not deliver to that country, the customer must pick up");
 		}
 
 		// Asks employee if customer would like insurance. If so adds insurance.
-		System.out.println(
+		this.out.println(
 				"For $9.95, would the customer like insurance for their purchase? (Y or N)");
-		answer = sc.nextLine();
+		answer = readLine();
 
 		if (answer.equalsIgnoreCase("Y"))
-			this.sale.addInsurance();
+			this.engine.addInsurance(this.invoiceID);
 
-		// Displays final invoice.
-		this.sale.displayInvoice();
+		// Finalises the invoice, which keeps it safely on disk, then displays it.
+		OrderResult result = this.engine.finalise(this.invoiceID);
+		result.getInvoice().displayInvoice(this.out);
 
-		// Closes program.
-		System.exit(0);
+		if (result.getStatus() == OrderResult.Status.NOT_ARCHIVED)
+			this.out.println(
+					"The invoice could not be archived: " + result.getError().getMessage());
+
+		// Ends the session.
+		this.out.flush();
+		this.finished = true;
 	}
 
 	
-	// Retrieves inventory of Toy Universe and formats into readable table.
+	// Retrieves the current page of Toy Universe's inventory, formatted into a
+	// readable table.
 	public String[] retrieveInventory() {
+		return this.inventoryView.page(this.inventoryPage);
+	}
 
-		String[] productID = inventory.getAllProductIDs();
-		// Stores inventory elements in arrays.
-		for (int i = 0; i < productID.length; i++) {
-
-			this.productDescription[i] = inventory.getDescription(productID[i]);
-			this.productQuantity[i] = inventory.getStockLevel(productID[i]);
-			this.productPrice[i] = inventory.getPrice(productID[i]);
-		}
+	
+	// Shows the current page of Toy Universe's inventory in a formatted table, to
+	// assist employee.
+	public void displayInventory() {
 
-		int maxDescriptionLength = 0;
+		String[] formattedInventory = retrieveInventory();
 
-		// finding the maximum length of largest description string.
-		for (int i = 0; i < productID.length; i++) {
+		for (int i = 0; i < formattedInventory.length; i++)
+			this.out.println(formattedInventory[i]);
 
-			int currentDescriptionLength = this.productDescription[i].length();
+		// Only mention pages when the inventory does not fit on one.
+		int pageCount = this.inventoryView.getPageCount();
+		if (pageCount > 1)
+			this.out.println("Page " + this.inventoryPage + " of " + pageCount);
 
-			if (currentDescriptionLength > maxDescriptionLength)
-				maxDescriptionLength = currentDescriptionLength;
-		}
-		
-		String[] formattedInventory = new String[productID.length + 2];
-		
-		// Format the header of the table with a uniform description column width.
-		String titleDescription = sale.extendStringWhiteSpace("Description",
-				maxDescriptionLength);
+		this.out.println();
+	}
 
-		formattedInventory[0] = String.format("%s   %s   %s   %s","ID",titleDescription,"Price","Quantity");
+	// Asks which page of the inventory to show, then shows it. The same page is
+	// shown when adding purchases.
+	public void viewInventory() {
 
-		char[] lineSeparator = new char[formattedInventory[0].length()];
+		int pageCount = this.inventoryView.getPageCount();
 
-		for (int i = 0; i < lineSeparator.length; i++)
-			lineSeparator[i] = '-';
+		if (pageCount > 1) {
+			this.out.println("Which page of the inventory? (1 - " + pageCount + ")");
+			String answer = readLine().trim();
 
-		formattedInventory[1] = new String(lineSeparator);
+			try {
+				int page = Integer.parseInt(answer);
 
-		// Format each purchase with a uniform description column width.
-		for (int i = 0; i < productID.length; i++) {
+				if (page >= 1 && page <= pageCount)
+					this.inventoryPage = page;
+				else
+					this.out.println("Error, there is no page " + page);
+			} catch (NumberFormatException e) {
+				this.out.println("Error, the page number was invalid");
+			}
+		}
 
-			this.productDescription[i] = sale
-					.extendStringWhiteSpace(productDescription[i], maxDescriptionLength);
+		displayInventory();
+	}
 
-			formattedInventory[i + 2] = String.format("%s | %s | %.2f | %s", productID[i],
-					this.productDescription[i], this.productPrice[i],
-					this.productQuantity[i]);
-		}
-		return formattedInventory;
+	// Shows everything printed since the last input, in one write, then reads the
+	// user's next line.
+	private String readLine() {
+		this.out.flush();
+		return this.sc.nextLine();
 	}
 
-	
-	// Shows total inventory of Toy Universe in a formatted table, to assist employee.
-	public void displayInventory() {
+	// The main method of the program, Where program starts.
+	// Creates constructor. If a catalog file is named, inventory is loaded from it.
+	// Invoice ID's are reserved in INVOICE_ID_FILE, as node "salesNode" of
+	// "salesNodes" when those system properties are set. Delivery is charged from
+	// the rates file named by the "deliveryRates" system property, if set, and
+	// finalised invoices are archived in ARCHIVE_DIRECTORY and indexed in
+	// INDEX_DIRECTORY.
+	// "--replay orders-file" replays a file of orders instead of showing the menu,
+	// then prints a summary; "--invoices file" also writes each invoice replayed
+	// to the file. "--http port" takes orders over HTTP on that port of this
+	// computer instead, with SalesHttpServer, until Enter is pressed.
+	// SalesMetrics are published through JMX throughout. At the console every
+	// call is timed; replays and HTTP time one in "metricsSampleEvery" calls,
+	// 16 by default.
+	public static void main(String[] args) throws IOException {
+		Inventory inventory = null;
+		String catalogFile = null, ordersFile = null, invoicesFile = null;
+		int httpPort = -1;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--replay") && i + 1 < args.length)
+				ordersFile = args[++i];
+			else if (args[i].equals("--invoices") && i + 1 < args.length)
+				invoicesFile = args[++i];
+			else if (args[i].equals("--http") && i + 1 < args.length)
+				httpPort = Integer.parseInt(args[++i]);
+			else
+				catalogFile = args[i];
+		}
 
-		String[] formattedInventory = retrieveInventory();
+		boolean interactive = ordersFile == null && httpPort < 0;
+		SalesMetrics.enable(Integer.getInteger("metricsSampleEvery",
+				interactive ? 1 : SalesMetrics.DEFAULT_SAMPLE_EVERY));
+
+		String ratesFile = System.getProperty("deliveryRates");
+		if (ratesFile != null)
+			DeliveryRates.reload(Paths.get(ratesFile));
+
+		Invoice2.setInvoiceIdGenerator(new InvoiceIdGenerator(Paths.get(INVOICE_ID_FILE),
+				Integer.getInteger("salesNode", 0), Integer.getInteger("salesNodes", 1),
+				InvoiceIdGenerator.DEFAULT_BLOCK_SIZE));
+
+		BufferedOutputSink console = new BufferedOutputSink();
+		if (catalogFile != null) {
+			CatalogLoader loader = new CatalogLoader();
+			inventory = loader.load(COMPANY, Paths.get(catalogFile));
+			for (String rejected : loader.getRejectedLines())
+				console.println("Skipped catalog " + rejected);
+			console.println("Loaded " + inventory.getAllProductIDs().length
+					+ " products in " + loader.getLoadMillis() + " ms\n");
+			console.flush();
+		}
 
-		for (int i = 0; i < this.productPrice.length; i++)
-			System.out.println(formattedInventory[i]);
+		if (inventory == null)
+			inventory = new Inventory(COMPANY);
+
+		try (InvoiceArchive archive = new InvoiceArchive(Paths.get(ARCHIVE_DIRECTORY));
+				InvoiceIndex index = new InvoiceIndex(Paths.get(INDEX_DIRECTORY), archive);
+				OrderEngine engine = new OrderEngine(inventory, archive, index)) {
+
+			// Orders are taken over HTTP from this computer until Enter is pressed.
+			if (httpPort >= 0) {
+				try (SalesHttpServer server = new SalesHttpServer(engine,
+						new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort))) {
+					console.println("Taking orders on http://localhost:" + server.getPort()
+							+ "/ - press Enter to stop");
+					console.flush();
+					System.in.read();
+				}
+				return;
+			}
 
-		System.out.println();
-	}
+			if (ordersFile == null) {
+				SalesSystem2 sS = new SalesSystem2(engine, console);
+				sS.run();
+				return;
+			}
 
-	// The main method of the program, Where program starts.
-	// Creates constructor.
-	public static void main(String[] args) {
-		SalesSystem2 sS = new SalesSystem2();
+			try (BufferedOutputSink invoices = invoicesFile == null ? null
+					: new BufferedOutputSink(Paths.get(invoicesFile))) {
+				OrderReplay replay = new OrderReplay(engine, invoices, console);
+				replay.replay(Paths.get(ordersFile));
+				replay.printSummary(console);
+			}
+		}
 	}
 }
 // This class is free of bugs.
\ No newline at end of file
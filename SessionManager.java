@@ -0,0 +1,85 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A SessionManager runs many clerks' sessions at once against one shared
+ * OrderEngine, and so one shared Inventory.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Opening a ClerkSession for each clerk.
+ * 
+ * Retrieving how many sessions are open, and whether they run on virtual
+ * threads.
+ * 
+ * Closing every session and stopping.
+ * 
+ * Sessions do not own threads. A session's commands wait in its mailbox until
+ * a thread is free to run them, so thousands of clerks share the threads of
+ * one executor and an open session costs only its mailbox and invoice. Where
+ * the Java runtime has virtual threads, each mailbox is run on a virtual thread
+ * of its own, so a command waiting on disk never holds up another session.
+ * Otherwise a fixed pool of platform threads is used, large enough that a few
+ * commands waiting on disk leave the rest of the pool busy.
+ */
+
+public class SessionManager implements AutoCloseable {
+
+	// Threads per processor in the pool used without virtual threads.
+	private static final int THREADS_PER_PROCESSOR = 4;
+
+	private final OrderEngine engine;
+	private final ExecutorService executor;
+	private final boolean virtual;
+
+	private final Set<ClerkSession> sessions = ConcurrentHashMap.newKeySet();
+
+	// Constructor of SessionManager running sessions against the given engine.
+	public SessionManager(OrderEngine engine) {
+		this.engine = engine;
+		this.virtual = VirtualThreads.available();
+		this.executor = VirtualThreads.newExecutor("clerk-session",
+				Runtime.getRuntime().availableProcessors() * THREADS_PER_PROCESSOR);
+	}
+
+	// Opens a new session.
+	public ClerkSession openSession() {
+		ClerkSession session = new ClerkSession(this, this.engine, this.executor);
+		this.sessions.add(session);
+		return session;
+	}
+
+	// Accessor for the number of sessions open.
+	public int getSessionCount() {
+		return this.sessions.size();
+	}
+
+	// Returns true if sessions run on virtual threads.
+	public boolean isVirtual() {
+		return this.virtual;
+	}
+
+	// Called by a session once it has closed.
+	void closed(ClerkSession session) {
+		this.sessions.remove(session);
+	}
+
+	// Closes every open session, cancelling their invoices, and waits for every
+	// command already sent to run. If the waiting thread is interrupted it stops
+	// waiting and is left interrupted, and the commands still run.
+	@Override
+	public void close() {
+		for (ClerkSession session : this.sessions)
+			session.close();
+
+		this.executor.shutdown();
+		try {
+			this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A StockJournal is an append-only write-ahead log of stock level changes.
+ * 
+ * This class allows an Inventory to interact with it in the following ways:
+ * 
+ * Replaying every change already in the journal when the Inventory starts.
+ * 
+ * Writing a change to the journal's in-memory buffer as stock is updated.
+ * 
+ * Waiting until the changes written so far are safely on disk.
+ * 
+ * Changes are made durable with group commit. The first thread to wait becomes
+ * the leader: it writes and forces everything buffered so far in one go, while
+ * threads arriving meanwhile keep buffering and are covered by the next flush.
+ * One fsync is therefore shared by every sale made while the previous one was
+ * in progress.
+ * 
+ * Each record holds the product ID, the signed change in stock level and a
+ * CRC32C checksum. A record torn by a crash fails its checksum, and the journal
+ * is cut back to the last whole record when it is opened.
+ */
+
+public class StockJournal implements Closeable {
+
+	// Size of each of the two record buffers. A buffer grows if a single batch
+	// outgrows it.
+	private static final int BUFFER_BYTES = 64 * 1024;
+
+	// Product ID lengths are stored in two bytes.
+	private static final int MAX_ID_CHARS = 0xFFFF;
+
+	private final FileChannel channel;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushed = lock.newCondition();
+	private final CRC32C checksum = new CRC32C();
+
+	// Records are written into pendingBuffer while the leader flushes
+	// spareBuffer; the two are swapped at the start of every flush.
+	private ByteBuffer pendingBuffer;
+	private ByteBuffer spareBuffer;
+
+	// Count of records written, and of records known to be on disk.
+	private long writtenRecords;
+	private long durableRecords;
+
+	private boolean flushInProgress;
+	private IOException failure;
+
+	/**
+	 * Opens the journal file, creating it if it does not exist yet.
+	 * 
+	 * @param journalFile The file the journal is kept in.
+	 * 
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public StockJournal(Path journalFile) throws IOException {
+		this.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.channel.position(this.channel.size());
+		this.pendingBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		this.spareBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Passes every whole record in the journal to the consumer, oldest first, then
+	 * cuts off any torn record left at the end by a crash.
+	 * 
+	 * @param change Receives the product ID and the change in stock level of each
+	 *               record.
+	 * 
+	 * @return the number of records replayed.
+	 * 
+	 * @throws IOException if the journal cannot be read.
+	 */
+	public long replay(ObjIntConsumer<String> change) throws IOException {
+		lock.lock();
+		try {
+			long size = channel.size();
+			ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			CRC32C recordChecksum = new CRC32C();
+			char[] idChars = new char[16];
+			long replayed = 0;
+
+			while (records.remaining() >= Short.BYTES) {
+				int start = records.position();
+				int idLength = Short.toUnsignedInt(records.getShort());
+				int bodyBytes = idLength * Character.BYTES + Integer.BYTES;
+
+				if (records.remaining() < bodyBytes + Integer.BYTES) {
+					records.position(start);
+					break;
+				}
+
+				recordChecksum.reset();
+				recordChecksum.update(records.duplicate().position(start)
+						.limit(start + Short.BYTES + bodyBytes));
+
+				if (idChars.length < idLength)
+					idChars = new char[idLength];
+				for (int i = 0; i < idLength; i++)
+					idChars[i] = records.getChar();
+				int delta = records.getInt();
+
+				if (records.getInt() != (int) recordChecksum.getValue()) {
+					records.position(start);
+					break;
+				}
+
+				change.accept(new String(idChars, 0, idLength), delta);
+				replayed++;
+			}
+
+			// Drop a torn tail so new records are not appended after it.
+			if (records.position() < size)
+				channel.truncate(records.position());
+			channel.position(records.position());
+			return replayed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Buffers a stock level change without waiting for it to reach disk.
+	 * 
+	 * @param productID The ID of the product whose stock level changed.
+	 * @param delta     The change in stock level, negative for stock removed.
+	 * 
+	 * @throws UncheckedIOException if an earlier flush of the journal failed.
+	 */
+	public void write(String productID, int delta) {
+		int idLength = productID.length();
+
+		if (idLength > MAX_ID_CHARS)
+			throw new IllegalArgumentException("Product ID is too long to journal");
+
+		int recordBytes = Short.BYTES + idLength * Character.BYTES + Integer.BYTES * 2;
+
+		lock.lock();
+		try {
+			if (failure != null)
+				throw new UncheckedIOException("Stock journal is unusable", failure);
+
+			if (pendingBuffer.remaining() < recordBytes)
+				pendingBuffer = grow(pendingBuffer, recordBytes);
+
+			ByteBuffer buffer = pendingBuffer;
+			int start = buffer.position();
+			buffer.putShort((short) idLength);
+			for (int i = 0; i < idLength; i++)
+				buffer.putChar(productID.charAt(i));
+			buffer.putInt(delta);
+
+			checksum.reset();
+			checksum.update(buffer.duplicate().position(start).limit(buffer.position()));
+			buffer.putInt((int) checksum.getValue());
+
+			writtenRecords++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every change written so far is on disk, flushing the journal if
+	 * no other thread is already doing so.
+	 * 
+	 * @throws UncheckedIOException if the journal could not be flushed. Some of
+	 *                              the changes may be on disk and some not, so
+	 *                              the journal refuses every write after, until
+	 *                              it is opened again and replayed.
+	 */
+	public void sync() {
+		lock.lock();
+		try {
+			long target = writtenRecords;
+
+			while (durableRecords < target) {
+				if (failure != null)
+					throw new UncheckedIOException("Stock journal is unusable", failure);
+
+				// Another thread is flushing; its batch or the next one covers ours.
+				if (flushInProgress) {
+					flushed.awaitUninterruptibly();
+					continue;
+				}
+
+				flushInProgress = true;
+				ByteBuffer batch = pendingBuffer;
+				pendingBuffer = spareBuffer;
+				long batchRecords = writtenRecords;
+
+				// Write and force the batch without holding the lock, so other tills
+				// can keep buffering changes for the next batch.
+				lock.unlock();
+				IOException batchFailure = null;
+				try {
+					batch.flip();
+					while (batch.hasRemaining())
+						channel.write(batch);
+					channel.force(false);
+				} catch (IOException e) {
+					batchFailure = e;
+				} finally {
+					lock.lock();
+				}
+
+				batch.clear();
+				spareBuffer = batch;
+				flushInProgress = false;
+
+				if (batchFailure == null)
+					durableRecords = batchRecords;
+				else
+					failure = batchFailure;
+
+				flushed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes any buffered changes and closes the journal file.
+	 * 
+	 * @throws IOException if the file cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Copies a buffer into a larger one with room for at least extra more bytes.
+	private static ByteBuffer grow(ByteBuffer buffer, int extra) {
+		int capacity = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+		ByteBuffer larger = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * VirtualThreads makes executors that run each task on a virtual thread where
+ * the Java runtime has them.
+ * 
+ * This class allows a Sales System user to interact with it in the following
+ * ways:
+ * 
+ * Finding out whether virtual threads are available.
+ * 
+ * Making an executor that runs each task on its own virtual thread, or on a
+ * fixed pool of daemon platform threads when there are none.
+ * 
+ * Virtual threads only exist from Java 21, so the factory method is looked up
+ * by name rather than called, and the Sales System still builds and runs on
+ * Java 17.
+ */
+
+public final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	// Returns true if the runtime has virtual threads.
+	public static boolean available() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	// Makes an executor running each task on a new virtual thread, or if there
+	// are none, on a fixed pool of the given number of daemon threads with the
+	// given name.
+	public static ExecutorService newExecutor(String threadName, int poolThreads) {
+		try {
+			return (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(poolThreads, task -> {
+				Thread thread = new Thread(task, threadName);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}